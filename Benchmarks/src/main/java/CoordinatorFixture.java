@@ -0,0 +1,386 @@
+import benchmarks.Fixture;
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs a Coordinator in this process for the benchmarks, which reach it through benchmarks.Fixture. Participants are
+// simulated on loopback, as LoadGenerator's are. The hot paths are private to the Coordinator's ControlConnection, so
+// they are called through method handles on a connection the fixture makes itself and whose responses it drains.
+// That connection belongs to the first event loop, which also answers its requests as their commits complete, so
+// every call on it is made as a task on that loop.
+public class CoordinatorFixture implements Fixture {
+    private static final String HOST = "127.0.0.1";
+    private static final String GROUP = "news";
+    private static final long TIMEOUT_MS = 60_000;
+
+    private static final Constructor<?> CONTROL_CONNECTION;
+    private static final MethodHandle HANDLE_REQUEST;
+    private static final MethodHandle MULTICAST_MESSAGE;
+    private static final MethodHandle SAVE_MESSAGE;
+    private static final MethodHandle EXECUTE;
+    private static final Field EVENT_LOOPS;
+    private static final Field MESSAGE_LOG;
+    private static final Field LOOP_THREAD;
+
+    static {
+        try {
+            Class<?> connection = Class.forName("Coordinator$ControlConnection");
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(connection, MethodHandles.lookup());
+            CONTROL_CONNECTION = connection.getDeclaredConstructor(Coordinator.class, SocketChannel.class, Class.forName("Coordinator$EventLoop"));
+            CONTROL_CONNECTION.setAccessible(true);
+            HANDLE_REQUEST = lookup.findVirtual(connection, "handleRequest", MethodType.methodType(void.class, Frame.class, long.class));
+            MULTICAST_MESSAGE = lookup.findVirtual(connection, "multicastMessage",
+                    MethodType.methodType(void.class, Frame.class, String.class, List.class, int.class, long.class));
+            SAVE_MESSAGE = lookup.findVirtual(connection, "saveMessageForOfflineParticipants",
+                    MethodType.methodType(MessageLog.Entry.class, byte[].class, byte[].class, int.class));
+            EVENT_LOOPS = Coordinator.class.getDeclaredField("eventLoops");
+            EVENT_LOOPS.setAccessible(true);
+            MESSAGE_LOG = Coordinator.class.getDeclaredField("messageLog");
+            MESSAGE_LOG.setAccessible(true);
+            Class<?> loop = Class.forName("Coordinator$EventLoop");
+            EXECUTE = MethodHandles.privateLookupIn(loop, MethodHandles.lookup())
+                    .findVirtual(loop, "execute", MethodType.methodType(void.class, Runnable.class));
+            LOOP_THREAD = loop.getDeclaredField("thread");
+            LOOP_THREAD.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Thread running;
+    private final Object[] eventLoops;
+    private final MessageLog messageLog;
+    private final Object connection; // The fixture's own ControlConnection, on the first event loop
+    private final SocketChannel responses; // Its client end
+    private final Socket control; // An ordinary control connection, for setting up participants
+    private final DataInputStream controlIn;
+    private final DataOutputStream controlOut;
+    private long nextRequest = 1;
+    private final Map<Integer, Simulated> participants = new ConcurrentHashMap<>();
+
+    public CoordinatorFixture(Properties options) throws IOException {
+        // Quiet, and the log stays bounded: every half second a snapshot compacts what every participant has acknowledged
+        Properties settings = new Properties();
+        settings.setProperty("requestLogSampling", "0");
+        settings.setProperty("statsIntervalMs", "0");
+        settings.setProperty("shmRingBytes", "0");
+        settings.setProperty("snapshotIntervalMs", "500");
+        settings.setProperty("segmentBytes", String.valueOf(8 << 20));
+        settings.setProperty("expiryBatchSegments", "1024");
+        settings.putAll(options);
+        if (settings.getProperty("logDir") == null) throw new IllegalArgumentException("logDir is required");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Coordinator coordinator = new Coordinator(port, 3600, settings);
+        running = new Thread(coordinator::start, "Coordinator");
+        running.setDaemon(true);
+        running.start();
+        control = connect(port);
+        controlIn = new DataInputStream(new BufferedInputStream(control.getInputStream()));
+        controlOut = new DataOutputStream(new BufferedOutputStream(control.getOutputStream()));
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            responses = SocketChannel.open(server.getLocalAddress());
+            SocketChannel accepted = server.accept();
+            accepted.configureBlocking(false);
+            messageLog = (MessageLog) MESSAGE_LOG.get(coordinator);
+            eventLoops = (Object[]) EVENT_LOOPS.get(coordinator);
+            connection = CONTROL_CONNECTION.newInstance(coordinator, accepted, eventLoops[0]);
+        } catch (InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IllegalStateException("Cannot open a control connection", e);
+        }
+        daemon("Responses", this::drainResponses);
+    }
+
+    // The Coordinator is listening once its event loops exist
+    private static Socket connect(int port) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                Socket socket = new Socket(HOST, port);
+                socket.setTcpNoDelay(true);
+                return socket;
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void drainResponses() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (responses.read(buffer) >= 0) buffer.clear();
+        } catch (IOException e) {
+            // Closed with the fixture
+        }
+    }
+
+    // A participant's delivery end: takes the Coordinator's connections one after another, echoes heartbeats and,
+    // if acknowledging, acks cumulatively whenever the socket is drained, as DeliveryConnection does
+    private final class Simulated {
+        final int id;
+        final boolean acknowledging;
+        final ServerSocket listener;
+        volatile long receivedUpTo = 0; // Over the current connection
+        volatile boolean connected = false;
+
+        Simulated(int id, boolean acknowledging) throws IOException {
+            this.id = id;
+            this.acknowledging = acknowledging;
+            this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            daemon("Participant-" + id, this::receive);
+        }
+
+        private void receive() {
+            while (!listener.isClosed()) {
+                try (Socket socket = listener.accept()) {
+                    connected = true;
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    long ackedUpTo = 0;
+                    while (true) {
+                        Frame frame = Frame.readFrom(in);
+                        if (frame.opcode == Frame.MESSAGE_BATCH) {
+                            for (Frame message : frame.frames()) received(message);
+                        } else if (frame.opcode == Frame.MESSAGE || frame.opcode == Frame.GROUP_MESSAGE) {
+                            received(frame);
+                        } else if (frame.opcode == Frame.HEARTBEAT) {
+                            frame.writeTo(out);
+                            out.flush();
+                        }
+                        if (acknowledging && in.available() == 0 && receivedUpTo > ackedUpTo) {
+                            ackedUpTo = receivedUpTo;
+                            new Frame(Frame.ACK, id, ackedUpTo, new byte[0]).writeTo(out);
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Delivery connection closed by a disconnect or at shutdown
+                } finally {
+                    connected = false;
+                }
+            }
+        }
+
+        private void received(Frame message) {
+            if (message.sequence > receivedUpTo) receivedUpTo = message.sequence;
+        }
+
+        byte[] address() {
+            return Frame.addressPayload(HOST, listener.getLocalPort(), (byte) 0);
+        }
+    }
+
+    private synchronized void request(byte opcode, int participantID, byte[] payload, String expected) throws IOException {
+        Frame request = new Frame(opcode, participantID, nextRequest++, payload);
+        request.writeTo(controlOut);
+        controlOut.flush();
+        Frame response;
+        do {
+            response = Frame.readFrom(controlIn);
+        } while (response.opcode != Frame.RESPONSE || response.sequence != request.sequence);
+        if (!response.text().equals(expected)) {
+            throw new IOException(Frame.name(opcode) + " of participant " + participantID + ": " + response.text());
+        }
+    }
+
+    private Simulated participant(int participantID) {
+        Simulated participant = participants.get(participantID);
+        if (participant == null) throw new IllegalArgumentException("Participant " + participantID + " not registered");
+        return participant;
+    }
+
+    @Override
+    public void register(int participantID, boolean acknowledging) throws IOException {
+        Simulated participant = new Simulated(participantID, acknowledging);
+        participants.put(participantID, participant);
+        request(Frame.REGISTER, participantID, participant.address(), "Participant registered");
+    }
+
+    @Override
+    public void subscribe(int participantID, String group) throws IOException {
+        request(Frame.SUBSCRIBE, participantID, group.getBytes(StandardCharsets.UTF_8), "Subscribed to " + group);
+    }
+
+    // Returns once the participant has read the last of the closed connection, so a reconnect starts counting afresh
+    @Override
+    public void disconnect(int participantID) throws IOException {
+        Simulated participant = participant(participantID);
+        request(Frame.DISCONNECT, participantID, new byte[0], "Participant disconnected");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (participant.connected) {
+            if (System.nanoTime() - deadline > 0) throw new IOException("Participant " + participantID + " still connected");
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    @Override
+    public void reconnect(int participantID) throws IOException {
+        Simulated participant = participant(participantID);
+        participant.receivedUpTo = 0;
+        request(Frame.RECONNECT, participantID, participant.address(), "Participant reconnected");
+    }
+
+    @Override
+    public void awaitDelivered(int participantID, long sequence) throws IOException {
+        Simulated participant = participant(participantID);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (participant.receivedUpTo < sequence) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("Participant " + participantID + " received up to " + participant.receivedUpTo + " of " + sequence);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public long head() {
+        return messageLog.head();
+    }
+
+    // Makes the calls one after another in a single task on the connection's loop, and waits for them
+    private Runnable onLoop(int calls, Runnable call) {
+        return () -> {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            Runnable task = () -> {
+                try {
+                    for (int i = 0; i < calls; i++) call.run();
+                    done.complete(null);
+                } catch (Throwable e) {
+                    done.completeExceptionally(e);
+                }
+            };
+            try {
+                EXECUTE.invoke(eventLoops[0], task);
+                done.join();
+            } catch (CompletionException e) {
+                throw Fixture.unchecked(e.getCause());
+            } catch (Throwable e) {
+                throw Fixture.unchecked(e);
+            }
+        };
+    }
+
+    @Override
+    public Runnable handleRequest(String request, int participantID, int calls) throws IOException {
+        if (request.equals("register")) return registerCycle(participantID, calls);
+        byte[] message = new byte[64];
+        ByteBuffer[] frames; // Taken in turn
+        switch (request) {
+            case "subscribe": // Then unsubscribe, so the next subscribe is not refused
+                frames = new ByteBuffer[] {Frame.text(Frame.SUBSCRIBE, participantID, 1, GROUP).encode(),
+                        Frame.text(Frame.UNSUBSCRIBE, participantID, 1, GROUP).encode()};
+                break;
+            case "msend":
+                frames = new ByteBuffer[] {new Frame(Frame.MSEND, participantID, 1, message).encode()};
+                break;
+            case "gsend":
+                frames = new ByteBuffer[] {new Frame(Frame.GSEND, participantID, 1, Frame.groupPayload(GROUP.getBytes(StandardCharsets.UTF_8), message)).encode()};
+                break;
+            case "mbatch":
+                frames = new ByteBuffer[] {Frame.batch(participantID, 1, Collections.nCopies(16, message)).encode()};
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown request " + request);
+        }
+        int[] next = new int[1];
+        return onLoop(calls, () -> {
+            try {
+                ByteBuffer encoded = frames[next[0]++ % frames.length];
+                HANDLE_REQUEST.invoke(connection, Frame.decode(encoded.duplicate()), System.nanoTime());
+            } catch (Throwable e) {
+                throw Fixture.unchecked(e);
+            }
+        });
+    }
+
+    // Registration answers only once the delivery connection is up, which takes the loop's own turns, so each
+    // register goes over the ordinary control connection and is answered before the participant is deregistered
+    private Runnable registerCycle(int participantID, int calls) throws IOException {
+        if (participants.containsKey(participantID)) throw new IllegalArgumentException("Participant " + participantID + " already registered");
+        Simulated participant = new Simulated(participantID, true);
+        participants.put(participantID, participant);
+        return () -> {
+            try {
+                for (int i = 0; i < calls; i++) {
+                    request(Frame.REGISTER, participantID, participant.address(), "Participant registered");
+                    request(Frame.DEREGISTER, participantID, new byte[0], "Participant deregistered");
+                }
+            } catch (IOException e) {
+                throw Fixture.unchecked(e);
+            }
+        };
+    }
+
+    @Override
+    public Runnable multicastMessage(int senderID, String group, int messages, int messageBytes, int calls) {
+        List<byte[]> batch = Collections.nCopies(messages, new byte[messageBytes]);
+        Frame request = messages == 1 ? new Frame(Frame.MSEND, senderID, 1, batch.get(0)) : Frame.batch(senderID, 1, batch);
+        return onLoop(calls, () -> {
+            try {
+                MULTICAST_MESSAGE.invoke(connection, request, group, batch, senderID, System.nanoTime());
+            } catch (Throwable e) {
+                throw Fixture.unchecked(e);
+            }
+        });
+    }
+
+    // Under the log lock, with the commit requested but not waited for, as multicastMessage does. Only the log is
+    // touched, so it runs on the caller's thread
+    @Override
+    public Runnable saveMessageForOfflineParticipants(int senderID, String group, int messageBytes) {
+        byte[] groupName = group != null ? group.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] message = new byte[messageBytes];
+        return () -> {
+            try {
+                MessageLog.Entry entry;
+                synchronized (messageLog) {
+                    entry = (MessageLog.Entry) SAVE_MESSAGE.invoke(connection, groupName, message, senderID);
+                }
+                messageLog.commit(entry);
+            } catch (Throwable e) {
+                throw Fixture.unchecked(e);
+            }
+        };
+    }
+
+    // Stops the event loops, after which the Coordinator closes its log; the caller deletes the directory
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Object loop : eventLoops) ((Thread) LOOP_THREAD.get(loop)).interrupt();
+            running.join(TIMEOUT_MS);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Simulated participant : participants.values()) participant.listener.close();
+        control.close();
+        responses.close();
+    }
+}
@@ -0,0 +1,48 @@
+import benchmarks.LogFixture;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+// Builds the log benchmarks.LogFixture describes: cursors for the participants, then the messages, with the last 1%
+// appended after a snapshot if one is asked for
+public class MessageLogFixture implements LogFixture {
+    private final Path directory;
+
+    public MessageLogFixture(Path directory, int participants, long messages, boolean snapshot) throws IOException {
+        this.directory = directory;
+        long tail = snapshot ? messages / 100 : 0;
+        byte[] message = new byte[64];
+        MessageLog log = log();
+        log.open();
+        try {
+            for (int id = 0; id < participants; id++) log.saveCursor(id, 0);
+            for (long i = 0; i < messages - tail; i++) log.appendMessage(System.currentTimeMillis(), 1, null, message);
+        } finally {
+            log.close();
+        }
+        if (!snapshot) return;
+        log = log();
+        log.open();
+        try {
+            log.writeSnapshot(Collections.emptyMap());
+            for (long i = 0; i < tail; i++) log.appendMessage(System.currentTimeMillis(), 1, null, message);
+        } finally {
+            log.close();
+        }
+    }
+
+    private MessageLog log() {
+        return new MessageLog(directory, 3_600_000L, 16L << 20, 3_600_000L, MessageLog.FsyncPolicy.ALWAYS, 1000, 0);
+    }
+
+    @Override
+    public long recover() throws IOException {
+        MessageLog log = log();
+        log.open();
+        try {
+            return log.retainedMessages();
+        } finally {
+            log.close();
+        }
+    }
+}
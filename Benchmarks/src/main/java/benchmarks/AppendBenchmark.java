@@ -0,0 +1,52 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// saveMessageForOfflineParticipants: one append to the active segment under the log lock, with its commit requested
+// as multicastMessage requests it. Under fsyncPolicy=always the flusher fsyncs behind the appends meanwhile. With no
+// participant registered, every snapshot compacts what has been appended.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+    @Param({"64", "4096"})
+    public int messageBytes;
+
+    @Param({"none", "news"})
+    public String group;
+
+    @Param({"always", "interval", "never"})
+    public String fsyncPolicy;
+
+    private Path directory;
+    private Fixture fixture;
+    private Runnable saveMessage;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = LogDirectories.create("append");
+        Properties options = new Properties();
+        options.setProperty("logDir", directory.toString());
+        options.setProperty("fsyncPolicy", fsyncPolicy);
+        fixture = Fixture.start(options);
+        saveMessage = fixture.saveMessageForOfflineParticipants(1, group.equals("none") ? null : group, messageBytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (fixture != null) fixture.close();
+        LogDirectories.delete(directory);
+    }
+
+    @Benchmark
+    public void saveMessageForOfflineParticipants() {
+        saveMessage.run();
+    }
+}
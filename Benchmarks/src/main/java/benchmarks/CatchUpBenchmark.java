@@ -0,0 +1,77 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// resendPendingMessages, end to end: a participant reconnects with a backlog and the call is done once the whole
+// backlog has arrived. The participant never acknowledges, so its cursor stays put and every reconnect replays the
+// same backlog. With filtered set it is subscribed to one of two groups the backlog alternates between, so catch-up
+// reads and filters the segments instead of sending them whole.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatchUpBenchmark {
+    private static final int SENDER = 1;
+    private static final int CATCHER = 2;
+    private static final int BATCH = 100;
+
+    @Param({"10000", "100000"})
+    public int backlog;
+
+    @Param({"false", "true"})
+    public boolean filtered;
+
+    private Path directory;
+    private Fixture fixture;
+    private long last; // Sequence of the last message the participant receives
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = LogDirectories.create("catch-up");
+        Properties options = new Properties();
+        options.setProperty("logDir", directory.toString());
+        options.setProperty("ackWindow", String.valueOf(Integer.MAX_VALUE)); // Never waits for the acks it will not get
+        fixture = Fixture.start(options);
+        fixture.register(SENDER, true);
+        fixture.register(CATCHER, false);
+        if (filtered) fixture.subscribe(CATCHER, "even");
+        fixture.disconnect(CATCHER);
+        Runnable all = fixture.multicastMessage(SENDER, null, BATCH, 64, 1);
+        Runnable even = fixture.multicastMessage(SENDER, "even", BATCH, 64, 1);
+        Runnable odd = fixture.multicastMessage(SENDER, "odd", BATCH, 64, 1);
+        for (int i = 0; i < backlog / BATCH; i++) {
+            if (!filtered) {
+                all.run();
+            } else if (i % 2 == 0) {
+                even.run();
+                last = fixture.head();
+            } else {
+                odd.run();
+            }
+        }
+        if (!filtered) last = fixture.head();
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() throws IOException {
+        fixture.disconnect(CATCHER);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (fixture != null) fixture.close();
+        LogDirectories.delete(directory);
+    }
+
+    @Benchmark
+    public void resendPendingMessages() throws IOException {
+        fixture.reconnect(CATCHER);
+        fixture.awaitDelivered(CATCHER, last);
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// multicastMessage: append under the log lock, then offer to every online participant's queue. The participants
+// drain and acknowledge on loopback like real ones; any that fall behind spill to streaming from the log, as they
+// would in production, rather than going offline.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final int SENDER = 1;
+    private static final int CALLS = 16; // Per task on the event loop
+
+    @Param({"1", "16", "64"})
+    public int participants;
+
+    @Param({"64", "1024"})
+    public int messageBytes;
+
+    @Param({"1", "16"})
+    public int batch;
+
+    @Param({"always", "never"})
+    public String fsyncPolicy;
+
+    private Path directory;
+    private Fixture fixture;
+    private Runnable multicastMessage;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = LogDirectories.create("fan-out");
+        Properties options = new Properties();
+        options.setProperty("logDir", directory.toString());
+        options.setProperty("fsyncPolicy", fsyncPolicy);
+        options.setProperty("outboundQueueLimit", "1000000");
+        fixture = Fixture.start(options);
+        for (int id = SENDER; id < SENDER + participants; id++) {
+            fixture.register(id, true);
+        }
+        multicastMessage = fixture.multicastMessage(SENDER, null, batch, messageBytes, CALLS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (fixture != null) fixture.close();
+        LogDirectories.delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public void multicastMessage() {
+        multicastMessage.run();
+    }
+}
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+
+// A Coordinator running in the benchmark's JVM, with participants simulated on loopback. JMH only takes benchmarks in
+// a named package, and those cannot see the Coordinator's default-package classes, so the work is done by the
+// default-package CoordinatorFixture behind this interface.
+public interface Fixture extends Closeable {
+    // Options as in the Coordinator's configuration file, over the fixture's own defaults; logDir is required
+    static Fixture start(Properties options) throws IOException {
+        return Fixtures.create("CoordinatorFixture", new Class<?>[] {Properties.class}, options);
+    }
+
+    // Registers a participant that acknowledges what it receives, or one that never does and so keeps its cursor
+    void register(int participantID, boolean acknowledging) throws IOException;
+
+    void subscribe(int participantID, String group) throws IOException;
+
+    void disconnect(int participantID) throws IOException;
+
+    void reconnect(int participantID) throws IOException;
+
+    // Waits until the participant has received every message up to the sequence
+    void awaitDelivered(int participantID, long sequence) throws IOException;
+
+    long head();
+
+    // The hot paths, called as the event loop calls them, on a control connection of the fixture's own: each run
+    // makes the given number of calls in one task on the connection's loop, so the hand-off is shared between them.
+    // The request is one of subscribe (alternating with unsubscribe), msend, gsend and mbatch, built for the participant
+    // and decoded on every call; the participant must be online, and subscribed to "news" for gsend to reach anyone.
+    // A register is the exception: it goes over an ordinary control connection, for a participant not yet registered,
+    // and is answered and then deregistered before the next.
+    Runnable handleRequest(String request, int participantID, int calls) throws IOException;
+
+    Runnable multicastMessage(int senderID, String group, int messages, int messageBytes, int calls);
+
+    Runnable saveMessageForOfflineParticipants(int senderID, String group, int messageBytes);
+
+    // Runnables cannot throw checked exceptions
+    static RuntimeException unchecked(Throwable e) {
+        if (e instanceof RuntimeException) return (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        if (e instanceof IOException) return new UncheckedIOException((IOException) e);
+        return new IllegalStateException(e);
+    }
+}
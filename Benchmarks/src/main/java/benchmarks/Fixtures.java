@@ -0,0 +1,22 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
+// Instantiates the default-package fixtures behind Fixture and LogFixture, which this package cannot name
+final class Fixtures {
+    private Fixtures() {}
+
+    static <T> T create(String className, Class<?>[] parameterTypes, Object... arguments) throws IOException {
+        try {
+            @SuppressWarnings("unchecked")
+            T fixture = (T) Class.forName(className).getConstructor(parameterTypes).newInstance(arguments);
+            return fixture;
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw Fixture.unchecked(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Fixture " + className + " unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Logs go under benchmark-logs in the working directory (or -Dbenchmark.logDir), on the disk the Coordinator would
+// use rather than a temp directory that may be memory-backed, and are deleted when the trial ends
+final class LogDirectories {
+    private LogDirectories() {}
+
+    static Path create(String name) throws IOException {
+        Path parent = Paths.get(System.getProperty("benchmark.logDir", "benchmark-logs"));
+        Files.createDirectories(parent);
+        return Files.createTempDirectory(parent, name + "-");
+    }
+
+    static void delete(Path directory) throws IOException {
+        if (directory == null || !Files.exists(directory)) return;
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+// A message log on disk shaped like a large deployment's, for the recovery benchmark: the participants' cursors and
+// the given number of retained messages, optionally with a snapshot taken before the last 1% of them. Implemented
+// by the default-package MessageLogFixture, for the same reason as Fixture.
+public interface LogFixture {
+    static LogFixture create(Path directory, int participants, long messages, boolean snapshot) throws IOException {
+        return Fixtures.create("MessageLogFixture", new Class<?>[] {Path.class, int.class, long.class, boolean.class},
+                directory, participants, messages, snapshot);
+    }
+
+    // Recovers the log as a restarting Coordinator does, closes it again and returns the messages it holds
+    long recover() throws IOException;
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Restart of a large deployment: 10,000 registered participants and the given number of retained messages,
+// recovered by scanning every segment or from a snapshot plus the 1% appended after it
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark {
+    @Param({"1000000"})
+    public long messages;
+
+    @Param({"false", "true"})
+    public boolean snapshot;
+
+    private Path directory;
+    private LogFixture log;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = LogDirectories.create("recovery");
+        log = LogFixture.create(directory, 10_000, messages, snapshot);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        LogDirectories.delete(directory);
+    }
+
+    @Benchmark
+    public long recover() throws IOException {
+        return log.recover();
+    }
+}
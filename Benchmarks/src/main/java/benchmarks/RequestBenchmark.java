@@ -0,0 +1,56 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Command handling in handleRequest: each call decodes a request frame, dispatches it, parses its payload and carries
+// it out, then answers it. The participant is online, acknowledges what it receives and is subscribed to the group, so
+// every request succeeds: msend, gsend and mbatch are appended and fanned out to it, and subscribe alternates with
+// unsubscribe. register is measured through a control socket, with the delivery connection it waits for and the
+// deregister after it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+    private static final int PARTICIPANT = 1;
+    private static final int NEWCOMER = 2;
+    private static final int CALLS = 64; // Per task on the event loop
+
+    @Param({"register", "subscribe", "msend", "gsend", "mbatch"})
+    public String request;
+
+    private Path directory;
+    private Fixture fixture;
+    private Runnable handleRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = LogDirectories.create("request");
+        Properties options = new Properties();
+        options.setProperty("logDir", directory.toString());
+        options.setProperty("fsyncPolicy", "never"); // The commit is FanOutBenchmark's and AppendBenchmark's concern
+        options.setProperty("outboundQueueLimit", "1000000"); // Spills to the log if it falls behind, rather than going offline
+        fixture = Fixture.start(options);
+        fixture.register(PARTICIPANT, true);
+        if (!request.equals("subscribe")) fixture.subscribe(PARTICIPANT, "news");
+        handleRequest = fixture.handleRequest(request, request.equals("register") ? NEWCOMER : PARTICIPANT, CALLS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (fixture != null) fixture.close();
+        LogDirectories.delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public void handleRequest() {
+        handleRequest.run();
+    }
+}
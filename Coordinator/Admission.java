@@ -0,0 +1,133 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Admission control for msend/gsend: a token bucket per sender, refilled at senderRate messages per second up to
+// senderBurst, and a global cap on messages appended but not yet acknowledged. A sender out of tokens is told when
+// to retry; while the cap is reached control connections stop being read, and are woken as acks take the count back
+// below it. All limits can change at runtime over JMX.
+class Admission {
+    private static final class TokenBucket {
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+
+        // 0 if admitted, otherwise milliseconds until the messages would be. A batch larger than the burst is
+        // admitted on a full bucket and leaves it in debt.
+        synchronized long acquire(int messages, double rate, double burst, long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+            double needed = Math.min(messages, burst);
+            if (tokens >= needed) {
+                tokens -= messages;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((needed - tokens) * 1000 / rate));
+        }
+    }
+
+    private final Map<Integer, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>(); // Throttled readers to wake below the cap
+    private volatile double senderRate;      // Messages per second per sender; 0 = unlimited
+    private volatile double senderBurst;     // 0 = one second's worth
+    private volatile long maxInFlight;       // 0 = unlimited
+
+    final AtomicLong retryResponses = new AtomicLong();
+    final AtomicLong throttledReads = new AtomicLong();
+
+    Admission(double senderRate, double senderBurst, long maxInFlight) {
+        this.senderRate = Math.max(0, senderRate);
+        this.senderBurst = Math.max(0, senderBurst);
+        this.maxInFlight = Math.max(0, maxInFlight);
+    }
+
+    // 0 if the sender may publish these messages now, otherwise the suggested retry delay in milliseconds
+    long retryAfterMs(int senderID, int messages) {
+        return retryAfterMs(senderID, messages, System.nanoTime());
+    }
+
+    // As above at the given System.nanoTime()
+    long retryAfterMs(int senderID, int messages, long now) {
+        double rate = senderRate;
+        if (rate <= 0) return 0;
+        double burst = senderBurst();
+        long retryAfter = buckets.computeIfAbsent(senderID, id -> new TokenBucket(burst, now)).acquire(messages, rate, burst, now);
+        if (retryAfter > 0) retryResponses.incrementAndGet();
+        return retryAfter;
+    }
+
+    boolean saturated() {
+        long limit = maxInFlight;
+        return limit > 0 && inFlight.get() >= limit;
+    }
+
+    void started(int messages) {
+        inFlight.addAndGet(messages);
+    }
+
+    void finished(int messages) {
+        inFlight.addAndGet(-messages);
+        if (!waiting.isEmpty() && !saturated()) wakeWaiting();
+    }
+
+    // Runs the task once in-flight messages are below the cap: at once if they already are, otherwise on the thread
+    // whose finished() (or limit change) takes them there
+    void whenBelowCap(Runnable task) {
+        waiting.add(task);
+        if (!saturated()) wakeWaiting(); // The count dropped before the task was queued
+    }
+
+    private void wakeWaiting() {
+        Runnable task;
+        while ((task = waiting.poll()) != null) task.run();
+    }
+
+    void forget(int senderID) {
+        buckets.remove(senderID);
+    }
+
+    long inFlight() {
+        return inFlight.get();
+    }
+
+    double senderRate() {
+        return senderRate;
+    }
+
+    double senderBurst() {
+        double burst = senderBurst;
+        return burst > 0 ? burst : Math.max(1, senderRate);
+    }
+
+    long maxInFlight() {
+        return maxInFlight;
+    }
+
+    void senderRate(double rate) {
+        senderRate = Math.max(0, rate);
+    }
+
+    void senderBurst(double burst) {
+        senderBurst = Math.max(0, burst);
+    }
+
+    void maxInFlight(long limit) {
+        maxInFlight = Math.max(0, limit);
+        if (!saturated()) wakeWaiting();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("senderRate=%s senderBurst=%s, in flight %d of %s, retry-after responses %d, throttled reads %d",
+                senderRate > 0 ? String.format("%.0f/s", senderRate) : "unlimited", String.format("%.0f", senderBurst()),
+                inFlight.get(), maxInFlight > 0 ? String.valueOf(maxInFlight) : "unlimited", retryResponses.get(),
+                throttledReads.get());
+    }
+}
@@ -1,39 +1,656 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-public class Coordinator {
+public class Coordinator implements CoordinatorMBean {
     private int port;
     private int timeout;
-    private ServerSocket serverSocket;
-    private final Map<Integer, Socket> participantMap = new HashMap<>();
-    private final List<Integer> activeParticipants = new ArrayList<>();
-    private final Map<Long, String> messageMap = new TreeMap<>();
-    private final Map<Long, List<Integer>> nonMessageRecipients = new TreeMap<>();
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(10); // Thread pool with 10 threads
-
-    public Coordinator(int port, int timeout) {
+    private ServerSocketChannel serverChannel;
+    // Registered participants; every state change swaps the entry with replace(id, expected, next), so concurrent
+    // register / disconnect / reconnect requests on different loops never need a shared lock
+    private final ConcurrentHashMap<Integer, Registration> participants = new ConcurrentHashMap<>();
+    // Copy-on-write snapshot of the online delivery channels that fan-out iterates without locking
+    private final AtomicReference<DeliveryChannel[]> online = new AtomicReference<>(new DeliveryChannel[0]);
+    // Inverted index from group name to subscribed participants; changed only under the log lock, with the
+    // persisted subscriptions, so a subscription takes effect at a definite point in the message sequence
+    private final ConcurrentHashMap<String, Set<Integer>> groups = new ConcurrentHashMap<>();
+    private final MessageLog messageLog;
+    // Messages are numbered and appended under the log lock, which queues their fan-out here in sequence order; the
+    // offers themselves run under the fan-out lock, so appends and everything else that needs the log are not held up
+    // by the recipients. Delivery channel state that offers depend on is guarded by the fan-out lock; code that needs
+    // both locks takes the log lock first.
+    private final Queue<FanOut> pendingFanOuts = new ConcurrentLinkedQueue<>();
+    private final Object fanOutLock = new Object();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long expiryIntervalMs;
+    private final int expiryBatchSegments;
+    private final long snapshotIntervalMs;
+    private volatile long recoveryMillis; // Time the last start took to rebuild its state from disk
+    private final EventLoop[] eventLoops;
+    private int nextLoop = 0;
+    private final int outboundQueueLimit;
+    private final OverflowPolicy overflowPolicy;
+    // Messages held in memory across all outbound queues; past the budget the largest queues spill to the log
+    private final long memoryBudgetBytes;
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final Admission admission;
+    private final long coalesceMs;
+    private final int coalesceBytes;
+    private final long statsIntervalMs;
+    private final int ackWindow;
+    private final long heartbeatIntervalMs;
+    private final double phiThreshold;
+    private final Metrics metrics;
+    // Same-host participants that ask for it are delivered to through a ring in shared memory, written once per message
+    private final Path shmDir;
+    private final long shmRingBytes;
+    private SharedRing sharedRing; // Null when unavailable; written under the fan-out lock
+    private int ringReaders = 0;   // Online participants reading the ring; guarded by the fan-out lock
+    private static final int[] EVERY_RING_READER = new int[0];
+
+    private enum State {
+        OFFLINE,    // Registered; messages are retained from its cursor
+        CONNECTING, // Delivery connection being opened
+        ONLINE      // Receiving messages through its delivery channel
+    }
+
+    // Immutable registry entry; a fresh instance per transition so a stale compare-and-set can never match
+    private static final class Registration {
+        final State state;
+        final DeliveryChannel delivery; // Only set while ONLINE
+
+        Registration(State state, DeliveryChannel delivery) {
+            this.state = state;
+            this.delivery = delivery;
+        }
+    }
+
+    // The offers for one msend, gsend or batch, taken in sequence order by whichever thread holds the fan-out lock.
+    // Recipients are fixed when the messages are appended: every online channel, or the group's members as subscribed
+    // then. A channel that came online since streams these messages from the log instead, and skips their offers.
+    private final class FanOut {
+        final List<MessageLog.Entry> entries;
+        final DeliveryChannel[] recipients; // For a message to everyone
+        final int[] members;                // For a group message
+        boolean atLeastOneSent = false;
+        RuntimeException failure;
+
+        FanOut(List<MessageLog.Entry> entries, DeliveryChannel[] recipients, int[] members) {
+            this.entries = entries;
+            this.recipients = recipients;
+            this.members = members;
+        }
+
+        // Called under the fan-out lock
+        void run() {
+            try {
+                for (MessageLog.Entry entry : entries) {
+                    if (recipients != null) {
+                        for (DeliveryChannel delivery : recipients) {
+                            if (delivery.offer(entry.sequence, entry.frame)) {
+                                atLeastOneSent = true;
+                            }
+                        }
+                        if (ringReaders > 0) sharedRing.write(entry.frame, EVERY_RING_READER);
+                        continue;
+                    }
+                    List<Integer> ringMembers = ringReaders > 0 ? new ArrayList<>() : null;
+                    for (int member : members) {
+                        Registration registration = participants.get(member);
+                        if (registration != null && registration.delivery != null
+                                && registration.delivery.offer(entry.sequence, entry.frame)) {
+                            atLeastOneSent = true;
+                            if (ringMembers != null && registration.delivery.inRing) ringMembers.add(member);
+                        }
+                    }
+                    if (ringMembers != null && !ringMembers.isEmpty()) {
+                        sharedRing.write(entry.frame, ringMembers.stream().mapToInt(Integer::intValue).toArray());
+                    }
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
+
+    // Runs every fan-out queued so far, this thread's own included, unless another thread already has
+    private void fanOutPending() {
+        synchronized (fanOutLock) {
+            FanOut fanOut;
+            while ((fanOut = pendingFanOuts.poll()) != null) {
+                fanOut.run();
+            }
+        }
+    }
+
+    // What to do with a participant whose outbound queue is full
+    private enum OverflowPolicy {
+        OFFLINE, // Close its delivery connection and retain its messages until it reconnects
+        DROP     // Skip the message for that participant only. Lossy: acks are cumulative, so it is never redelivered
+    }
+
+    public Coordinator(int port, int timeout, Properties options) {
         this.port = port;
         this.timeout = timeout;
+        int loops = Integer.parseInt(options.getProperty("eventLoops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.eventLoops = new EventLoop[loops]; // One event loop per core by default
+        this.outboundQueueLimit = Integer.parseInt(options.getProperty("outboundQueueLimit", "1024"));
+        this.overflowPolicy = OverflowPolicy.valueOf(options.getProperty("overflowPolicy", "offline").toUpperCase());
+        this.memoryBudgetBytes = Long.parseLong(options.getProperty("memoryBudgetBytes", String.valueOf(64L << 20)));
+        this.admission = new Admission(
+                Double.parseDouble(options.getProperty("senderRate", "0")),
+                Double.parseDouble(options.getProperty("senderBurst", "0")),
+                Long.parseLong(options.getProperty("maxInFlightMessages", "65536")));
+        this.messageLog = new MessageLog(
+                Paths.get(options.getProperty("logDir", "message-log")),
+                timeout * 1000L,
+                Long.parseLong(options.getProperty("segmentBytes", String.valueOf(64L << 20))),
+                Long.parseLong(options.getProperty("segmentMillis", String.valueOf(Math.max(1000L, timeout * 250L)))),
+                MessageLog.FsyncPolicy.valueOf(options.getProperty("fsyncPolicy", "always").toUpperCase()),
+                Long.parseLong(options.getProperty("fsyncIntervalMs", "1000")),
+                Long.parseLong(options.getProperty("groupCommitMs", "0")));
+        this.expiryIntervalMs = Long.parseLong(options.getProperty("expiryIntervalMs", "1000"));
+        this.expiryBatchSegments = Integer.parseInt(options.getProperty("expiryBatchSegments", "16"));
+        this.snapshotIntervalMs = Long.parseLong(options.getProperty("snapshotIntervalMs", "30000"));
+        this.coalesceMs = Long.parseLong(options.getProperty("coalesceMs", "0"));
+        // A coalesced frame must still fit in one frame payload
+        this.coalesceBytes = Math.min(Frame.MAX_PAYLOAD, Integer.parseInt(options.getProperty("coalesceBytes", String.valueOf(64 * 1024))));
+        this.statsIntervalMs = Long.parseLong(options.getProperty("statsIntervalMs", "60000"));
+        this.ackWindow = Math.max(1, Integer.parseInt(options.getProperty("ackWindow", "8192")));
+        this.heartbeatIntervalMs = Long.parseLong(options.getProperty("heartbeatIntervalMs", "1000"));
+        this.phiThreshold = Double.parseDouble(options.getProperty("phiThreshold", "8"));
+        this.metrics = new Metrics(Integer.parseInt(options.getProperty("requestLogSampling", "1")));
+        this.shmDir = Paths.get(options.getProperty("shmDir", "/dev/shm"));
+        this.shmRingBytes = Long.parseLong(options.getProperty("shmRingBytes", String.valueOf(64L << 20)));
     }
 
     public void start() {
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Coordinator started on port: " + port);
+            long recoveryStarted = System.nanoTime();
+            messageLog.open();
+            if (shmRingBytes > 0 && Files.isDirectory(shmDir)) {
+                try {
+                    sharedRing = SharedRing.create(shmDir.resolve("coordinator-" + port + ".ring"), shmRingBytes);
+                } catch (IOException e) {
+                    System.err.println("Shared memory delivery unavailable: " + e.getMessage());
+                }
+            }
+            for (Integer participantID : messageLog.cursors().keySet()) {
+                participants.put(participantID, new Registration(State.OFFLINE, null)); // Known from the log; offline until it reconnects
+                metrics.register(participantID);
+            }
+            messageLog.subscriptions().forEach((participantID, subscribed) -> {
+                for (String group : subscribed) {
+                    groups.computeIfAbsent(group, name -> ConcurrentHashMap.newKeySet()).add(participantID);
+                }
+            });
+            recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recoveryStarted);
+            MessageLog.Recovery recovery = messageLog.recovery();
+            System.out.println("Recovered " + participants.size() + " participants and " + messageLog.retainedMessages()
+                    + " messages in " + recoveryMillis + " ms (" + recovery.fromSnapshot + " of " + recovery.segments
+                    + " segments from the snapshot, " + recovery.scannedBytes + " bytes scanned)");
+            scheduler.scheduleWithFixedDelay(this::expireMessages, expiryIntervalMs, expiryIntervalMs, TimeUnit.MILLISECONDS);
+            if (snapshotIntervalMs > 0) {
+                scheduler.scheduleWithFixedDelay(this::takeSnapshot, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+            }
+            if (statsIntervalMs > 0) {
+                scheduler.scheduleAtFixedRate(this::printStats, statsIntervalMs, statsIntervalMs, TimeUnit.MILLISECONDS);
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Coordinator:type=Coordinator,port=" + port));
+            } catch (JMException e) {
+                System.err.println("JMX registration failed: " + e.getMessage());
+            }
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop("EventLoop-" + i);
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            eventLoops[0].register(serverChannel, SelectionKey.OP_ACCEPT, key -> acceptConnections());
+            System.out.println("Coordinator started on port: " + port + " (" + eventLoops.length + " event loops)");
+            if (overflowPolicy == OverflowPolicy.DROP) {
+                System.err.println("overflowPolicy=drop: messages dropped for a participant with a full queue are not redelivered");
+            }
 
-            while (true) {
-                Socket socket = serverSocket.accept();
-                threadPool.execute(new WorkerThread(socket, timeout)); // Use thread pool instead of new Thread
+            for (EventLoop loop : eventLoops) {
+                loop.thread.start();
+            }
+            eventLoops[0].execute(this::restoreOnlineParticipants);
+            for (EventLoop loop : eventLoops) {
+                loop.thread.join();
             }
         } catch (IOException e) {
             System.err.println("Coordinator Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            threadPool.shutdown();
+            for (EventLoop loop : eventLoops) {
+                if (loop != null) loop.thread.interrupt();
+            }
+            scheduler.shutdownNow();
+            try {
+                messageLog.close();
+            } catch (IOException e) {
+                System.err.println("Error closing message log: " + e.getMessage());
+            }
+            if (sharedRing != null) closeQuietly(sharedRing);
+        }
+    }
+
+    // Runs on its own thread so retained messages expire even when no participant ever reconnects
+    private void expireMessages() {
+        try {
+            MessageLog.Expiry expiry = messageLog.deleteExpiredSegments(System.currentTimeMillis(), expiryBatchSegments);
+            if (expiry.segments > 0) {
+                System.out.println("Expired " + expiry.messages + " messages, reclaimed " + expiry.bytes + " bytes from "
+                        + expiry.segments + " segments (total " + messageLog.expiredMessages() + " messages, "
+                        + messageLog.reclaimedBytes() + " bytes)");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Expiry Error: " + e.getMessage());
         }
     }
 
+    // Brings the log's picture of every online participant up to date, then compacts the log behind the slowest
+    // registered participant. Cursors are saved as acknowledged, so nothing compacted can be asked for again.
+    private void takeSnapshot() {
+        try {
+            long started = System.nanoTime();
+            Map<Integer, MessageLog.Endpoint> endpoints = new HashMap<>();
+            long acknowledgedByAll;
+            synchronized (messageLog) { // Orders this against deregistration, so no cursor is saved for a participant just removed
+                for (DeliveryChannel delivery : online.get()) {
+                    Registration current = participants.get(delivery.participantID);
+                    Long cursor = messageLog.cursor(delivery.participantID);
+                    if (current == null || current.delivery != delivery || cursor == null) continue;
+                    if (delivery.ackedUpTo > cursor) messageLog.saveCursor(delivery.participantID, delivery.ackedUpTo);
+                    endpoints.put(delivery.participantID, delivery.endpoint);
+                }
+                acknowledgedByAll = messageLog.head();
+                for (long cursor : messageLog.cursors().values()) {
+                    acknowledgedByAll = Math.min(acknowledgedByAll, cursor);
+                }
+            }
+            messageLog.writeSnapshot(endpoints);
+            metrics.snapshotMicros.record((System.nanoTime() - started) / 1000);
+            MessageLog.Expiry compaction = messageLog.compact(acknowledgedByAll, expiryBatchSegments);
+            if (compaction.segments > 0) {
+                System.out.println("Compacted " + compaction.messages + " acknowledged messages, reclaimed " + compaction.bytes
+                        + " bytes from " + compaction.segments + " segments (total " + messageLog.compactedMessages() + " messages, "
+                        + messageLog.compactedBytes() + " bytes)");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Snapshot Error: " + e.getMessage());
+        }
+    }
+
+    // Runs on the first event loop once the loops are up: participants that were online at the last snapshot are
+    // dialled back where they listened, so they resume without a reconnect; any that cannot be reached stay offline
+    private void restoreOnlineParticipants() {
+        messageLog.endpoints().forEach((id, endpoint) -> {
+            Registration current = participants.get(id);
+            Registration connecting = new Registration(State.CONNECTING, null);
+            if (current == null || current.state != State.OFFLINE || !participants.replace(id, current, connecting)) return;
+            EventLoop loop = eventLoops[nextLoop++ % eventLoops.length];
+            loop.execute(() -> connectParticipant(loop, id, endpoint, connecting, "Participant " + id + " restored at " + endpoint,
+                    System.out::println, e -> {
+                        System.err.println("Failed to restore participant " + id + " at " + endpoint + ": " + e.getMessage());
+                        participants.replace(id, connecting, new Registration(State.OFFLINE, null));
+                    }));
+        });
+    }
+
+    private void addOnline(DeliveryChannel delivery) {
+        DeliveryChannel[] current, next;
+        do {
+            current = online.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = delivery;
+        } while (!online.compareAndSet(current, next));
+    }
+
+    private void removeOnline(DeliveryChannel delivery) {
+        DeliveryChannel[] current, next;
+        do {
+            current = online.get();
+            int index = Arrays.asList(current).indexOf(delivery);
+            if (index < 0) return;
+            next = new DeliveryChannel[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, next.length - index);
+        } while (!online.compareAndSet(current, next));
+    }
+
+    // Moves an online participant offline if it is still served by this delivery channel; false if someone else got there first
+    private boolean detach(int participantID, DeliveryChannel delivery) {
+        Registration current = participants.get(participantID);
+        if (current == null || current.delivery != delivery
+                || !participants.replace(participantID, current, new Registration(State.OFFLINE, null))) {
+            return false;
+        }
+        removeOnline(delivery);
+        return true;
+    }
+
+    private void printStats() {
+        if (metrics.requests() == 0) return;
+        System.out.print(getReport());
+    }
+
+    // Snapshot for the stats command and JMX; gauges are read on demand, so nothing is kept up to date in the background
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("Requests: ").append(metrics.requests())
+                .append(" (logging 1 in ").append(metrics.requestLogSampling()).append(", 0 = off)\n");
+        metrics.appendRequests(report);
+        report.append("Messages sent: ").append(getMessagesSent())
+                .append(", retained: ").append(getRetainedMessages()).append(" (").append(getRetainedBytes()).append(" bytes)")
+                .append(", expired: ").append(getExpiredMessages()).append(" (").append(getReclaimedBytes()).append(" bytes)")
+                .append(", compacted: ").append(getCompactedMessages()).append(" (").append(messageLog.compactedBytes()).append(" bytes)\n");
+        report.append("Snapshots: ").append(messageLog.snapshotBytes()).append(" bytes, written in us: ").append(metrics.snapshotMicros)
+                .append("; last recovery took ").append(recoveryMillis).append(" ms\n");
+        report.append(String.format("Memory: %d of %d bytes buffered; spilled to the log %d times, %d messages (%d bytes), %.0f bytes/s recently%n",
+                getBufferedBytes(), memoryBudgetBytes, metrics.spills.get(), metrics.spilledMessages.get(),
+                metrics.spilledBytes.get(), metrics.spillRate()));
+        if (sharedRing != null) {
+            report.append("Shared memory: ").append(sharedRing.path()).append(", ").append(ringReaders)
+                    .append(" readers, ").append(metrics.ringFallbacks.get()).append(" fallbacks to TCP\n");
+        }
+        report.append("Admission: ").append(admission).append('\n');
+        report.append("msend ack us: ").append(metrics.msendAckMicros).append('\n');
+        report.append("Fan-out us: ").append(metrics.fanOutMicros).append('\n');
+        report.append("Catch-up us: ").append(metrics.replayMicros).append(", messages: ").append(metrics.replayedMessages).append('\n');
+        report.append("Publish batch sizes: ").append(metrics.publishBatchSizes).append('\n');
+        report.append("Delivery batch sizes: ").append(metrics.deliveryBatchSizes).append('\n');
+        report.append("Participants: ").append(getRegisteredParticipants()).append(" registered, ")
+                .append(getOnlineParticipants()).append(" online; groups: ").append(groups.size()).append('\n');
+        for (Map.Entry<Integer, Registration> participant : new TreeMap<>(participants).entrySet()) {
+            Metrics.ParticipantMetrics counters = metrics.participant(participant.getKey());
+            DeliveryChannel delivery = participant.getValue().delivery;
+            report.append(String.format("  %d %s%s requests=%d delivered=%d queued=%d unacked=%d delivery us: %s%n",
+                    participant.getKey(), participant.getValue().state.name().toLowerCase(),
+                    delivery != null && delivery.inRing ? " (ring)" : "", counters.requests.get(),
+                    counters.delivered.get(), delivery != null ? delivery.queued.get() : 0, delivery != null ? delivery.inFlight : 0,
+                    counters.deliveryMicros));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public long getRequests() {
+        return metrics.requests();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return metrics.messagesSent.get();
+    }
+
+    @Override
+    public int getOnlineParticipants() {
+        return online.get().length;
+    }
+
+    @Override
+    public int getRegisteredParticipants() {
+        return participants.size();
+    }
+
+    @Override
+    public long getRetainedMessages() {
+        return messageLog.retainedMessages();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return messageLog.retainedBytes();
+    }
+
+    @Override
+    public long getExpiredMessages() {
+        return messageLog.expiredMessages();
+    }
+
+    @Override
+    public long getReclaimedBytes() {
+        return messageLog.reclaimedBytes();
+    }
+
+    @Override
+    public long getCompactedMessages() {
+        return messageLog.compactedMessages();
+    }
+
+    @Override
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    @Override
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    @Override
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    @Override
+    public long getSpilledBytes() {
+        return metrics.spilledBytes.get();
+    }
+
+    @Override
+    public String getMsendAckLatencyMicros() {
+        return metrics.msendAckMicros.toString();
+    }
+
+    @Override
+    public String getFanOutMicros() {
+        return metrics.fanOutMicros.toString();
+    }
+
+    @Override
+    public String getReplayMicros() {
+        return metrics.replayMicros.toString();
+    }
+
+    @Override
+    public double getSenderRate() {
+        return admission.senderRate();
+    }
+
+    @Override
+    public void setSenderRate(double rate) {
+        admission.senderRate(rate);
+    }
+
+    @Override
+    public double getSenderBurst() {
+        return admission.senderBurst();
+    }
+
+    @Override
+    public void setSenderBurst(double burst) {
+        admission.senderBurst(burst);
+    }
+
+    @Override
+    public long getMaxInFlightMessages() {
+        return admission.maxInFlight();
+    }
+
+    @Override
+    public void setMaxInFlightMessages(long limit) {
+        admission.maxInFlight(limit);
+    }
+
+    @Override
+    public long getInFlightMessages() {
+        return admission.inFlight();
+    }
+
+    @Override
+    public int getRequestLogSampling() {
+        return metrics.requestLogSampling();
+    }
+
+    @Override
+    public void setRequestLogSampling(int sampling) {
+        metrics.requestLogSampling(sampling);
+    }
+
+    // Runs on the first event loop; accepted connections are spread round-robin over all loops
+    private void acceptConnections() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = eventLoops[nextLoop++ % eventLoops.length];
+                SocketChannel accepted = channel;
+                loop.execute(() -> {
+                    try {
+                        loop.register(accepted, SelectionKey.OP_READ, new ControlConnection(accepted, loop));
+                    } catch (IOException e) {
+                        System.err.println("Failed to register connection: " + e.getMessage());
+                        closeQuietly(accepted);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println("Accept Error: " + e.getMessage());
+        }
+    }
+
+    // Opens the delivery connection to the participant without blocking the given loop, which then owns it; reply gets
+    // the response once the participant is online, or why it could not be brought online after connecting
+    private void connectParticipant(EventLoop loop, int id, MessageLog.Endpoint endpoint, Registration connecting,
+                                    String response, Consumer<String> reply, Consumer<Exception> onFailure) {
+        SocketChannel participantChannel = null;
+        try {
+            boolean ring = endpoint.sharedMemory && sharedRing != null && onThisHost(endpoint.host); // Otherwise plain TCP
+            participantChannel = SocketChannel.open();
+            participantChannel.configureBlocking(false);
+            participantChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = participantChannel.connect(new InetSocketAddress(endpoint.host, endpoint.port));
+            SocketChannel pending = participantChannel;
+            SelectionKey deliveryKey = loop.register(pending, connected ? 0 : SelectionKey.OP_CONNECT, connectKey -> {
+                try {
+                    pending.finishConnect();
+                } catch (IOException e) {
+                    connectKey.cancel();
+                    closeQuietly(pending);
+                    onFailure.accept(e);
+                    return;
+                }
+                participantConnected(id, connecting, new DeliveryChannel(id, endpoint, pending, loop, connectKey, ring), response, reply);
+            });
+            if (connected) {
+                participantConnected(id, connecting, new DeliveryChannel(id, endpoint, pending, loop, deliveryKey, ring), response, reply);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(participantChannel);
+            onFailure.accept(e);
+        }
+    }
+
+    // Runs on an event loop, so only a literal address is checked (participants register with one): a host name would
+    // need a blocking lookup and just gets TCP delivery
+    private static boolean onThisHost(String host) throws SocketException {
+        InetAddress address = literalAddress(host);
+        return address != null && (address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null);
+    }
+
+    // The address a literal IPv4 or IPv6 host stands for, without any name lookup; null for anything else
+    private static InetAddress literalAddress(String host) {
+        try {
+            if (host.indexOf(':') >= 0) {
+                return InetAddress.getByName(host.startsWith("[") ? host : "[" + host + "]"); // Bracketed, it is only parsed
+            }
+            String[] parts = host.split("\\.", -1);
+            if (parts.length != 4) return null;
+            byte[] bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                if (!parts[i].matches("[0-9]{1,3}") || Integer.parseInt(parts[i]) > 255) return null;
+                bytes[i] = (byte) Integer.parseInt(parts[i]);
+            }
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private void participantConnected(int id, Registration connecting, DeliveryChannel delivery, String response, Consumer<String> reply) {
+        delivery.key.interestOps(SelectionKey.OP_READ);
+        delivery.key.attach(delivery);
+        try {
+            // The log lock orders this against msend appends (not against other registry changes): the backlog is
+            // planned and the channel joins the snapshot before any later message is appended, so every later fan-out
+            // includes it
+            synchronized (messageLog) {
+                Long cursor = messageLog.cursor(id);
+                if (cursor == null) {
+                    cursor = messageLog.head(); // New participants only receive messages sent after they register
+                    messageLog.saveCursor(id, cursor);
+                }
+                resendPendingMessages(id, delivery, cursor);
+                // Joins the snapshot first so a disconnect that wins right after activation always finds it there
+                addOnline(delivery);
+                if (!participants.replace(id, connecting, new Registration(State.ONLINE, delivery))) {
+                    removeOnline(delivery);
+                    delivery.close(false);
+                    if (!participants.containsKey(id)) {
+                        messageLog.removeCursor(id); // Deregistered while connecting
+                    }
+                    reply.accept("Participant deregistered while connecting");
+                    return;
+                }
+            }
+            reply.accept(response);
+            delivery.startHeartbeats();
+            delivery.flush(); // Catch-up streams from here on without holding up the response
+        } catch (IOException e) {
+            System.err.println("Failed to resend messages to participant " + id + ": " + e.getMessage());
+            delivery.close(false);
+            participants.replace(id, connecting, new Registration(State.OFFLINE, null));
+            reply.accept("Error processing request: " + e.getMessage());
+        }
+    }
+
+    // Plans the stream from the participant's cursor to the head of the log, skipping other groups' messages;
+    // the delivery channel sends it in the background
+    private void resendPendingMessages(int participantID, DeliveryChannel delivery, long cursor) throws IOException {
+        delivery.startCatchUp(cursor, messageLog.subscriptions(participantID));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) closeable.close();
+        } catch (IOException ignored) {}
+    }
+
     public static void main(String[] args) {
         if (args.length != 1) {
             System.err.println("Usage: java Coordinator <config_file>");
@@ -43,217 +660,968 @@ public class Coordinator {
         try (Scanner scanner = new Scanner(new File(args[0]))) {
             int port = Integer.parseInt(scanner.nextLine().trim());
             int timeout = Integer.parseInt(scanner.nextLine().trim());
-            new Coordinator(port, timeout).start();
+            Properties options = new Properties(); // Optional key=value lines after port and timeout
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine().trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] option = line.split("=", 2);
+                options.setProperty(option[0].trim(), option.length > 1 ? option[1].trim() : "");
+            }
+            new Coordinator(port, timeout, options).start();
         } catch (FileNotFoundException e) {
             System.err.println("Configuration file not found: " + args[0]);
         }
     }
 
-    private class WorkerThread implements Runnable {
-        private Socket socket;
-        private int timeout;
-        private DataInputStream in;
-        private DataOutputStream out;
+    private interface Handler {
+        void ready(SelectionKey key) throws IOException;
+    }
 
-        public WorkerThread(Socket socket, int timeout) {
-            this.socket = socket;
-            this.timeout = timeout;
-            try {
-                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-                out = new DataOutputStream(socket.getOutputStream());
-            } catch (IOException e) {
-                System.err.println("WorkerThread IO Error: " + e.getMessage());
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // Only touched by this loop's thread
+
+        private static class Timer implements Comparable<Timer> {
+            final long deadline;
+            final Runnable task;
+
+            Timer(long deadline, Runnable task) {
+                this.deadline = deadline;
+                this.task = task;
+            }
+
+            @Override
+            public int compareTo(Timer other) {
+                return Long.compare(deadline, other.deadline);
             }
         }
 
+        EventLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+        }
+
+        // Only call from this loop's thread (or before it starts); other threads go through execute()
+        SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+            return channel.register(selector, ops, handler);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Only call from this loop's thread; other threads go through execute()
+        void schedule(Runnable task, long delayMs) {
+            timers.add(new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs), task));
+        }
+
         @Override
         public void run() {
+            while (!thread.isInterrupted()) {
+                try {
+                    Timer next = timers.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long waitMs = TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime());
+                        if (waitMs > 0) selector.select(waitMs);
+                        else selector.selectNow();
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    long now = System.nanoTime();
+                    while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+                        timers.poll().task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) continue;
+                        try {
+                            ((Handler) key.attachment()).ready(key);
+                        } catch (IOException | RuntimeException e) {
+                            System.err.println("Connection Error: " + (e.getMessage() != null ? e.getMessage() : e));
+                            key.cancel();
+                            closeQuietly(key.channel());
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("EventLoop Error: " + e.getMessage());
+                }
+            }
             try {
-                String input = in.readUTF();
-                System.out.println("Received: " + input);
-                handleRequest(input);
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static class Outbound {
+        final long sequence;
+        final ByteBuffer frame;
+        final long queuedAt = System.nanoTime();
+
+        Outbound(long sequence, ByteBuffer frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+
+    // Delivery connection to one participant, written only by the event loop that owns it
+    private class DeliveryChannel implements Handler {
+        private final int participantID;
+        private final MessageLog.Endpoint endpoint; // Where the participant listens; kept in state snapshots
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final Queue<Outbound> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger(); // Includes the batch being written
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final List<Outbound> batch = new ArrayList<>(); // Live messages in the write below
+        private ByteBuffer[] writing;
+        private long writingUpTo; // Sequence delivered once the write completes
+        private SelectionKey key;
+        // Catch-up: the backlog is streamed from the log before anything queued live
+        private Deque<MessageLog.Span> catchUp; // Stretches of the log still to send; null once live
+        private MessageLog.Span transferring;   // Zero-copy span being sent
+        private long transferStart;
+        private long catchUpAfter;              // The plan covers (catchUpAfter, catchUpThrough]
+        private long catchUpThrough;
+        private Map<String, Long> catchUpGroups;
+        private boolean catchUpResuming = false; // A flush is queued on the loop to read the next filtered chunk
+        private long catchUpStarted;
+        private long catchUpMessages;
+        private boolean catchingUp = false; // Guarded by the fan-out lock, like overflowed
+        private boolean overflowed = false; // Live queue overflowed during catch-up; those messages come from the log instead
+        // Sliding window: written messages stay in flight until the participant acknowledges them cumulatively
+        private final ByteBuffer acks = ByteBuffer.allocate(1024);
+        private final Deque<long[]> unacked = new ArrayDeque<>(); // {last sequence, messages} per completed write
+        private volatile long inFlight = 0;
+        private volatile long ackedUpTo; // Persisted as the cursor, so anything unacknowledged is resent on reconnect
+        // Heartbeats go out between writes and come back echoed; a participant that falls silent goes offline
+        private PhiAccrualDetector detector;
+        private boolean heartbeatDue = false;
+        // Ring delivery: the participant switches over once live with nothing queued, and back to TCP if lapped
+        private final boolean ringRequested;
+        private volatile boolean inRing = false; // Guarded by the fan-out lock
+        private boolean sendingControl = false; // The write under way carries no messages (heartbeat or ring switch)
+        private final Metrics.ParticipantMetrics counters;
+        private volatile long deliveredUpTo; // Sequence of the last message fully written to the participant
+        private volatile boolean closed = false;
+        private boolean goingOffline = false; // Guarded by the fan-out lock: the queue overflowed and goOffline is on its way
+
+        DeliveryChannel(int participantID, MessageLog.Endpoint endpoint, SocketChannel channel, EventLoop loop, SelectionKey key, boolean ringRequested) {
+            this.participantID = participantID;
+            this.endpoint = endpoint;
+            this.ringRequested = ringRequested;
+            this.channel = channel;
+            this.loop = loop;
+            this.key = key;
+            this.counters = metrics.participant(participantID);
+        }
+
+        // Called under the fan-out lock, in sequence order, from any thread.
+        // The frame is shared with other recipients, so only a duplicate of it is consumed here.
+        boolean offer(long sequence, ByteBuffer frame) {
+            if (closed || goingOffline) return false;
+            if (sequence <= catchUpThrough) return true; // Appended before the last catch-up was planned, so already in it
+            // The caller writes it to the ring once for every reader. Not counted against the ack window, which
+            // cannot hold back one reader of a shared ring: the participant's reader applies a window of its own
+            if (inRing) {
+                deliveredUpTo = sequence;
+                counters.delivered.incrementAndGet();
+                return true;
+            }
+            if (overflowed) return spilled(frame); // Streamed from the log by the next catch-up pass
+            if (overBudget(frame.remaining())) {
+                spill();
+                return spilled(frame);
+            }
+            if (queued.get() >= outboundQueueLimit) {
+                if (catchingUp) {
+                    overflowed = true;
+                    return true;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    System.err.println("Outbound queue full, dropping message " + sequence + " for participant " + participantID + " for good");
+                    return false;
+                }
+                // Everything after the cursor, this message included, is replayed from the log on reconnect. Nothing
+                // later may be queued meanwhile: once written and acknowledged, it would carry the cursor past this one.
+                goingOffline = true;
+                loop.execute(() -> goOffline("outbound queue full", true));
+                return false;
+            }
+            Outbound outbound = new Outbound(sequence, frame.duplicate());
+            queue.add(outbound);
+            long bytes = outbound.frame.remaining();
+            long before = queuedBytes.getAndAdd(bytes);
+            bufferedBytes.addAndGet(bytes);
+            if (queued.getAndIncrement() == 0) {
+                // Wait up to coalesceMs for more messages unless a full batch is already waiting
+                if (coalesceMs > 0 && bytes < coalesceBytes) {
+                    loop.execute(() -> loop.schedule(this::flush, coalesceMs));
+                } else {
+                    loop.execute(this::flush);
+                }
+            } else if (before < coalesceBytes && before + bytes >= coalesceBytes) {
+                loop.execute(this::flush);
+            }
+            return true;
+        }
+
+        // Only a participant holding at least its share of the budget spills, so a fast one is not punished for a slow one
+        private boolean overBudget(long bytes) {
+            return bufferedBytes.get() + bytes > memoryBudgetBytes
+                    && queuedBytes.get() >= memoryBudgetBytes / Math.max(1, online.get().length);
+        }
+
+        // Called under the fan-out lock. The queue is dropped (it is all in the log) and the participant streams from
+        // the log instead until it is live again
+        private void spill() {
+            metrics.spills.incrementAndGet();
+            overflowed = true;
+            if (catchingUp) {
+                clearQueue(true); // Not drained during catch-up; the pass after this one covers it
+                return;
+            }
+            catchingUp = true; // Stops further queueing until the loop switches over
+            loop.execute(() -> {
+                synchronized (messageLog) {
+                    synchronized (fanOutLock) {
+                        if (closed) return;
+                        clearQueue(true);
+                        overflowed = false;
+                        catchUpStarted = System.nanoTime();
+                        catchUpMessages = 0;
+                        catchUpGroups = messageLog.subscriptions(participantID);
+                        try {
+                            // Anything in the current write goes out from memory; the log takes over after it
+                            planCatchUp(writing != null && !sendingControl ? writingUpTo : deliveredUpTo);
+                        } catch (IOException e) {
+                            System.err.println("Failed to spill participant " + participantID + " to the log: " + e.getMessage());
+                            loop.execute(() -> goOffline(e.getMessage(), true));
+                            return;
+                        }
+                    }
+                }
+                flush();
+            });
+        }
+
+        private boolean spilled(ByteBuffer frame) {
+            metrics.spilledMessages.incrementAndGet();
+            metrics.spilledBytes.addAndGet(frame.remaining());
+            return true;
+        }
+
+        // Called under the fan-out lock. Only what is still queued goes: a batch being written stays
+        // counted in queued until its write completes and takes it off.
+        private void clearQueue(boolean spilled) {
+            int messages = 0;
+            long bytes = 0;
+            Outbound outbound;
+            while ((outbound = queue.poll()) != null) {
+                messages++;
+                bytes += outbound.frame.remaining();
+            }
+            queued.addAndGet(-messages);
+            queuedBytes.addAndGet(-bytes);
+            bufferedBytes.addAndGet(-bytes);
+            if (spilled) {
+                metrics.spilledMessages.addAndGet(messages);
+                metrics.spilledBytes.addAndGet(bytes);
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            if (key.isReadable()) {
+                readAcks();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        private void readAcks() {
+            try {
+                if (channel.read(acks) < 0) {
+                    goOffline("delivery connection closed by participant", true);
+                    return;
+                }
+                acks.flip();
+                boolean windowFull = inFlight >= ackWindow;
+                Frame ack;
+                while ((ack = Frame.decode(acks)) != null) {
+                    if (ack.opcode == Frame.ACK) {
+                        acknowledged(ack.sequence);
+                    } else if (ack.opcode == Frame.HEARTBEAT && detector != null) {
+                        detector.heartbeat(System.currentTimeMillis());
+                    } else if (ack.opcode == Frame.RING_FALLBACK) {
+                        fallBack(ack.sequence);
+                    }
+                }
+                if (Frame.frameLength(acks) > acks.capacity()) throw new IOException("Unexpected frame on delivery connection");
+                acks.compact();
+                if (windowFull && inFlight < ackWindow) {
+                    flush();
+                }
             } catch (IOException e) {
-                System.err.println("WorkerThread Connection Error: " + (e.getMessage() != null ? e.getMessage() : "No message"));
+                System.err.println("Failed to read acks from participant " + participantID + ": " + e.getMessage());
+                goOffline(e.getMessage(), true);
+            }
+        }
+
+        private void acknowledged(long sequence) {
+            if (sequence <= ackedUpTo) return;
+            ackedUpTo = sequence;
+            releaseAcknowledged();
+        }
+
+        // A participant that kept more than its cursor acks that at once on a new connection, so anything resent up to
+        // it never counts against the window; it will not be acked again
+        private void releaseAcknowledged() {
+            long released = 0;
+            while (!unacked.isEmpty() && unacked.peek()[0] <= ackedUpTo) {
+                released += unacked.poll()[1];
+            }
+            inFlight -= released;
+        }
+
+        // Runs on the owning loop every heartbeatIntervalMs from going online until offline
+        void startHeartbeats() {
+            if (heartbeatIntervalMs <= 0 || closed) return;
+            detector = new PhiAccrualDetector(heartbeatIntervalMs, System.currentTimeMillis());
+            loop.schedule(this::heartbeat, heartbeatIntervalMs);
+        }
+
+        private void heartbeat() {
+            if (closed) return;
+            long now = System.currentTimeMillis();
+            double phi = detector.phi(now);
+            if (phi > phiThreshold) {
+                goOffline(String.format("no heartbeat for %d ms (phi %.1f)", detector.sinceLastHeartbeat(now), phi), true);
+                return;
+            }
+            heartbeatDue = true;
+            flush();
+            loop.schedule(this::heartbeat, heartbeatIntervalMs);
+        }
+
+        // Lapped by the ring writer: whatever came after the participant's last ring message is streamed over TCP,
+        // and it rejoins the ring once caught up
+        private void fallBack(long after) throws IOException {
+            synchronized (messageLog) {
+                synchronized (fanOutLock) {
+                    if (!inRing) return;
+                    inRing = false;
+                    ringReaders--;
+                    deliveredUpTo = after;
+                    catchUpStarted = System.nanoTime();
+                    catchUpMessages = 0;
+                    catchUpGroups = messageLog.subscriptions(participantID);
+                    planCatchUp(after);
+                }
+            }
+            metrics.ringFallbacks.incrementAndGet();
+            flush();
+        }
+
+        // Live with nothing queued: from here on messages reach the participant through the ring, starting at its
+        // current write position
+        private boolean enterRing() {
+            synchronized (fanOutLock) {
+                if (!queue.isEmpty() || catchingUp) return false;
+                inRing = true;
+                ringReaders++;
+                sendingControl = true;
+                writing = new ByteBuffer[] {Frame.ring(participantID, deliveredUpTo, sharedRing.published(), sharedRing.path().toString()).encode()};
+                return true;
+            }
+        }
+
+        private void written(long lastSequence, long messages) {
+            deliveredUpTo = lastSequence;
+            unacked.add(new long[] {lastSequence, messages});
+            inFlight += messages;
+            counters.delivered.addAndGet(messages);
+            releaseAcknowledged();
+        }
+
+        // Called under the log lock when the participant comes online, before it is offered anything: everything up to
+        // the current head is streamed from the log, while later messages queue up behind it, so nothing is missed or
+        // sent twice
+        void startCatchUp(long cursor, Map<String, Long> groups) throws IOException {
+            deliveredUpTo = cursor;
+            ackedUpTo = cursor;
+            catchUpGroups = groups;
+            catchUpStarted = System.nanoTime();
+            catchUpMessages = 0;
+            planCatchUp(cursor);
+        }
+
+        // Called under the log lock, so nothing is appended between reading the head and planning up to it
+        private void planCatchUp(long after) throws IOException {
+            catchUpAfter = after;
+            catchUpThrough = messageLog.head();
+            catchUp = messageLog.catchUpPlan(after, System.currentTimeMillis(), catchUpGroups);
+            catchingUp = true;
+        }
+
+        // Catch-up first, then everything queued, up to coalesceBytes at a time as one MESSAGE_BATCH frame in a
+        // single gathering write. Nothing new starts while ackWindow messages are unacknowledged.
+        private void flush() {
+            if (closed) return;
+            try {
+                while (true) {
+                    if (transferring == null && writing == null && !next()) break;
+                    if (transferring != null) {
+                        if (!transfer()) {
+                            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        continue;
+                    }
+                    channel.write(writing);
+                    if (writing[writing.length - 1].hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (sendingControl) {
+                        sendingControl = false;
+                    } else if (!batch.isEmpty()) {
+                        written(writingUpTo, batch.size());
+                        queued.addAndGet(-batch.size());
+                        long now = System.nanoTime();
+                        for (Outbound written : batch) {
+                            counters.deliveryMicros.record((now - written.queuedAt) / 1000);
+                        }
+                        batch.clear();
+                    } else {
+                        written(writingUpTo, writing.length);
+                    }
+                    writing = null;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException | CancelledKeyException e) {
+                System.err.println("Failed to send to participant " + participantID + ": " + e.getMessage());
+                goOffline(e.getMessage(), true);
+            }
+        }
+
+        // Sends a zero-copy span straight from the segment file; false while the socket cannot take more
+        private boolean transfer() throws IOException {
+            MessageLog.Span span = transferring;
+            try {
+                span.position += span.segment.channel.transferTo(span.position, span.end - span.position, channel);
+            } catch (ClosedChannelException e) {
+                // The segment expired; skip it unless part of a frame is already out
+                if (!channel.isOpen() || span.position != transferStart) throw e;
+                transferring = null;
+                return true;
+            }
+            if (span.position < span.end) return false;
+            written(span.lastSequence, span.messages);
+            transferring = null;
+            return true;
+        }
+
+        // Sets up the next write or transfer: a due heartbeat, then (window permitting) catch-up spans in order,
+        // then the switch to the ring if asked for, or live batches
+        private boolean next() throws IOException {
+            if (heartbeatDue) {
+                heartbeatDue = false;
+                sendingControl = true;
+                writing = new ByteBuffer[] {new Frame(Frame.HEARTBEAT, participantID, deliveredUpTo, new byte[0]).encode()};
+                return true;
+            }
+            if (inFlight >= ackWindow) return false;
+            while (catchUp != null) {
+                MessageLog.Span span = catchUp.peek();
+                if (span == null) {
+                    finishCatchUp();
+                    continue;
+                }
+                if (span.zeroCopy) {
+                    catchUp.poll();
+                    transferring = span;
+                    transferStart = span.position;
+                    catchUpMessages += span.messages;
+                    return true;
+                }
+                List<MessageLog.Message> messages;
                 try {
-                    out.writeUTF("Error processing request: " + e.getMessage());
-                    out.flush();
-                } catch (IOException ignored) {}
-            } finally {
+                    messages = messageLog.readSpan(span, catchUpAfter, System.currentTimeMillis(), catchUpGroups);
+                } catch (ClosedChannelException e) {
+                    catchUp.poll(); // Segment expired meanwhile
+                    continue;
+                }
+                if (span.position >= span.end) catchUp.poll();
+                if (messages.isEmpty()) {
+                    // A whole chunk of other groups' or expired messages: let the loop serve others before the next one
+                    if (!catchUpResuming) {
+                        catchUpResuming = true;
+                        loop.execute(() -> {
+                            catchUpResuming = false;
+                            flush();
+                        });
+                    }
+                    return false;
+                }
+                writing = new ByteBuffer[messages.size()];
+                for (int i = 0; i < writing.length; i++) {
+                    writing[i] = messages.get(i).frame;
+                }
+                writingUpTo = messages.get(messages.size() - 1).sequence;
+                catchUpMessages += messages.size();
+                return true;
+            }
+            if (ringRequested && !inRing && queue.isEmpty() && enterRing()) return true;
+            return nextBatch();
+        }
+
+        // Goes live, or makes another pass over the log if live messages had to be dropped meanwhile
+        private void finishCatchUp() throws IOException {
+            deliveredUpTo = Math.max(deliveredUpTo, catchUpThrough);
+            synchronized (messageLog) {
+                synchronized (fanOutLock) {
+                    if (overflowed) {
+                        overflowed = false;
+                        clearQueue(false);
+                        catchUpGroups = messageLog.subscriptions(participantID);
+                        planCatchUp(catchUpThrough);
+                        return;
+                    }
+                    catchUp = null;
+                    catchingUp = false;
+                }
+            }
+            metrics.replayMicros.record((System.nanoTime() - catchUpStarted) / 1000);
+            metrics.replayedMessages.record(catchUpMessages);
+        }
+
+        private boolean nextBatch() {
+            Outbound outbound = queue.poll();
+            if (outbound == null) return false;
+            int bytes = 0;
+            do {
+                batch.add(outbound);
+                bytes += outbound.frame.remaining();
+                queuedBytes.addAndGet(-outbound.frame.remaining());
+                bufferedBytes.addAndGet(-outbound.frame.remaining());
+                Outbound next = queue.peek();
+                outbound = next != null && bytes + next.frame.remaining() <= coalesceBytes ? queue.poll() : null;
+            } while (outbound != null);
+            metrics.deliveryBatchSizes.record(batch.size());
+            writingUpTo = batch.get(batch.size() - 1).sequence;
+            if (batch.size() == 1) {
+                writing = new ByteBuffer[] {batch.get(0).frame};
+                return true;
+            }
+            writing = new ByteBuffer[batch.size() + 1];
+            writing[0] = Frame.batchHeader(participantID, batch.get(batch.size() - 1).sequence, bytes);
+            for (int i = 0; i < batch.size(); i++) {
+                writing[i + 1] = batch.get(i).frame;
+            }
+            return true;
+        }
+
+        // Runs on the owning loop; anything after the cursor stays in the log for the next reconnect
+        private void goOffline(String reason, boolean retain) {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            if (retain) {
                 try {
-                    Thread.sleep(100); // Small delay before closing
-                    socket.close();
-                } catch (InterruptedException | IOException e) {
-                    System.err.println("Error closing socket: " + e.getMessage());
+                    synchronized (messageLog) { // A deregistration ahead of this on the control loop has removed the cursor
+                        if (messageLog.cursor(participantID) != null) messageLog.saveCursor(participantID, ackedUpTo);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Failed to save cursor for participant " + participantID + ": " + e.getMessage());
                 }
             }
+            queued.addAndGet(-batch.size()); // Never completes
+            batch.clear();
+            writing = null;
+            sendingControl = false;
+            catchUp = null;
+            transferring = null;
+            synchronized (fanOutLock) {
+                clearQueue(false); // No offer can add to it once closed
+                if (inRing) {
+                    inRing = false;
+                    ringReaders--;
+                }
+            }
+            if (detach(participantID, this)) {
+                System.err.println("Participant " + participantID + " moved offline: " + reason);
+            }
+        }
+
+        void close(boolean retain) {
+            loop.execute(() -> goOffline("closed", retain));
+        }
+    }
+
+    // A control connection stays open until the participant closes it, so no delay before closing is needed
+    private class ControlConnection implements Handler {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private ByteBuffer in = ByteBuffer.allocate(8 * 1024); // Grows up to the largest frame
+        private final Deque<ByteBuffer> out = new ArrayDeque<>();
+        private SelectionKey key;
+        private boolean closeAfterFlush = false;
+        private boolean throttled = false; // Not read while too many messages are in flight
+
+        public ControlConnection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            this.key = key;
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
         }
 
-        private void handleRequest(String input) throws IOException {
-            String[] parts = input.split("#");
-            String command = parts[0];
-            int participantID = Integer.parseInt(parts[1]);
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                closeAfterFlush = true;
+                flush();
+                return;
+            }
+            process();
+        }
 
-            switch (command) {
-                case "register":
-                    registerParticipant(participantID, parts[2], Integer.parseInt(parts[3]));
+        // Handles every complete request in the buffer, or stops reading until admission allows it
+        private void process() throws IOException {
+            in.flip();
+            Frame request;
+            while (!(throttled = admission.saturated()) && (request = Frame.decode(in)) != null) {
+                long received = System.nanoTime();
+                if (metrics.request(request)) {
+                    System.out.println("Received: " + request);
+                }
+                try {
+                    handleRequest(request, received);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("ControlConnection Error: " + (e.getMessage() != null ? e.getMessage() : "No message"));
+                    respond(request, "Error processing request: " + e.getMessage());
+                }
+                metrics.handled(request, received);
+            }
+            int pending = Frame.frameLength(in);
+            if (pending > in.capacity()) {
+                in = ByteBuffer.allocate(pending).put(in); // Make room for a frame larger than the buffer
+            } else {
+                in.compact();
+            }
+            if (throttled) {
+                admission.throttledReads.incrementAndGet();
+                key.interestOps(out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+                admission.whenBelowCap(() -> loop.execute(this::resume));
+            }
+        }
+
+        // Woken by the ack that takes the in-flight count below the cap; throttles again if others got there first
+        private void resume() {
+            if (!key.isValid()) return;
+            try {
+                process();
+                if (!throttled) flush();
+            } catch (IOException e) {
+                System.err.println("ControlConnection Error: " + e.getMessage());
+                close();
+            }
+        }
+
+        // Responses carry the request's sequence so the participant can match them up
+        private void respond(Frame request, String response) {
+            try {
+                out.add(Frame.text(Frame.RESPONSE, request.participantID, request.sequence, response).encode());
+                flush();
+            } catch (IOException e) {
+                System.err.println("Failed to respond: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!channel.isOpen()) return;
+            while (!out.isEmpty()) {
+                ByteBuffer buffer = out.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) break;
+                out.poll();
+            }
+            if (out.isEmpty() && closeAfterFlush) {
+                close();
+            } else if (key != null && key.isValid()) {
+                int read = throttled ? 0 : SelectionKey.OP_READ;
+                key.interestOps(out.isEmpty() ? read : read | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void close() {
+            if (key != null) key.cancel();
+            closeQuietly(channel);
+        }
+
+        private void handleRequest(Frame request, long received) throws IOException {
+            switch (request.opcode) {
+                case Frame.REGISTER:
+                    registerParticipant(request, request.participantID, request.host(), request.port(), request.sharedMemory());
+                    break;
+                case Frame.DEREGISTER:
+                    deregisterParticipant(request, request.participantID);
+                    break;
+                case Frame.RECONNECT:
+                    reconnectParticipant(request, request.participantID, request.host(), request.port(), request.sharedMemory());
+                    break;
+                case Frame.DISCONNECT:
+                    disconnectParticipant(request, request.participantID);
+                    break;
+                case Frame.MSEND:
+                    multicastMessage(request, null, Collections.singletonList(request.payload), request.participantID, received);
+                    break;
+                case Frame.MSEND_BATCH:
+                    multicastMessage(request, null, request.batchMessages(), request.participantID, received);
                     break;
-                case "deregister":
-                    deregisterParticipant(participantID);
+                case Frame.GSEND:
+                    multicastMessage(request, request.group(), Collections.singletonList(request.groupMessageBytes()), request.participantID, received);
                     break;
-                case "reconnect":
-                    reconnectParticipant(participantID, parts[2], Integer.parseInt(parts[3]));
+                case Frame.SUBSCRIBE:
+                    subscribe(request, request.participantID, request.text());
                     break;
-                case "disconnect":
-                    disconnectParticipant(participantID);
+                case Frame.UNSUBSCRIBE:
+                    unsubscribe(request, request.participantID, request.text());
                     break;
-                case "msend":
-                    multicastMessage(parts[2], participantID);
+                case Frame.STATS:
+                    // Read-only: any participant can send it, so limits meant for misbehaving senders are set over JMX
+                    if (request.payload.length > 0) {
+                        respond(request, "Usage: stats (settings are changed over JMX)");
+                        break;
+                    }
+                    respond(request, getReport().trim());
                     break;
                 default:
-                    out.writeUTF("Invalid command");
-                    out.flush();
+                    respond(request, "Invalid command");
                     break;
             }
         }
 
-        private void registerParticipant(int id, String ip, int port) throws IOException {
-            String response;
-            if (participantMap.containsKey(id)) {
-                response = "Participant already registered";
+        private void registerParticipant(Frame request, int id, String ip, int port, boolean sharedMemory) {
+            Registration connecting = new Registration(State.CONNECTING, null);
+            if (participants.putIfAbsent(id, connecting) != null) {
+                respond(request, "Participant already registered");
+                return;
+            }
+            metrics.register(id);
+            connectParticipant(loop, id, new MessageLog.Endpoint(ip, port, sharedMemory), connecting, "Participant registered",
+                    response -> respond(request, response), e -> {
+                        System.err.println("Failed to connect to participant " + id + " at " + ip + ":" + port + ": " + e.getMessage());
+                        if (participants.remove(id, connecting)) metrics.forget(id);
+                        respond(request, "Registration failed: " + e.getMessage());
+                    });
+        }
+
+        private void subscribe(Frame request, int id, String group) throws IOException {
+            if (!participants.containsKey(id)) {
+                respond(request, "Participant not found");
+                return;
+            }
+            if (!validGroup(group)) {
+                respond(request, "Usage: subscribe [group] (up to " + Frame.MAX_GROUP + " bytes, no spaces)");
+                return;
+            }
+            boolean added;
+            synchronized (messageLog) {
+                added = messageLog.subscribe(id, group);
+                if (added) groups.computeIfAbsent(group, name -> ConcurrentHashMap.newKeySet()).add(id);
+            }
+            if (added) {
+                saveSubscriptions(request, "Subscribed to " + group);
             } else {
+                respond(request, "Already subscribed to " + group);
+            }
+        }
+
+        private void unsubscribe(Frame request, int id, String group) throws IOException {
+            boolean removed;
+            synchronized (messageLog) {
+                removed = messageLog.unsubscribe(id, group);
+                if (removed) leaveGroup(id, group);
+            }
+            if (removed) {
+                saveSubscriptions(request, "Unsubscribed from " + group);
+            } else {
+                respond(request, "Not subscribed to " + group);
+            }
+        }
+
+        // The change is already in effect; the answer waits until it is on disk, written off the event loop
+        private void saveSubscriptions(Frame request, String response) {
+            scheduler.execute(() -> {
+                String outcome = response;
                 try {
-                    Socket participantSocket = new Socket(ip, port);
-                    participantMap.put(id, participantSocket);
-                    activeParticipants.add(id);
-                    response = "Participant registered";
-                    resendPendingMessages(id, participantSocket);
+                    messageLog.saveSubscriptions();
                 } catch (IOException e) {
-                    System.err.println("Failed to connect to participant " + id + " at " + ip + ":" + port + ": " + e.getMessage());
-                    response = "Registration failed: " + e.getMessage();
+                    outcome = "Error processing request: " + e.getMessage();
                 }
-            }
-            out.writeUTF(response);
-            out.flush();
+                String answer = outcome;
+                loop.execute(() -> respond(request, answer));
+            });
+        }
+
+        private boolean validGroup(String group) {
+            return !group.isEmpty() && group.getBytes(StandardCharsets.UTF_8).length <= Frame.MAX_GROUP && group.chars().noneMatch(Character::isWhitespace);
+        }
+
+        private void leaveGroup(int id, String group) {
+            groups.computeIfPresent(group, (name, members) -> {
+                members.remove(id);
+                return members.isEmpty() ? null : members;
+            });
         }
 
-        private void deregisterParticipant(int id) throws IOException {
+        private void deregisterParticipant(Frame request, int id) throws IOException {
             String response;
-            if (participantMap.containsKey(id)) {
-                if (participantMap.get(id) != null) {
-                    participantMap.get(id).close();
-                    activeParticipants.remove((Integer) id);
+            Registration removed = participants.remove(id);
+            if (removed != null) {
+                if (removed.delivery != null) {
+                    removeOnline(removed.delivery);
+                    removed.delivery.close(false);
+                }
+                synchronized (messageLog) {
+                    for (String group : messageLog.subscriptions(id).keySet()) leaveGroup(id, group);
+                    messageLog.removeCursor(id); // Drops its subscriptions too
                 }
-                participantMap.remove(id);
+                metrics.forget(id);
+                admission.forget(id);
                 response = "Participant deregistered";
             } else {
                 response = "Participant not found";
             }
-            out.writeUTF(response);
-            out.flush();
+            respond(request, response);
         }
 
-        private void reconnectParticipant(int id, String ip, int port) throws IOException {
-            String response;
-            if (participantMap.containsKey(id) && !activeParticipants.contains(id)) {
-                Socket participantSocket = new Socket(ip, port);
-                participantMap.put(id, participantSocket);
-                activeParticipants.add(id);
-                response = "Participant reconnected";
-                resendPendingMessages(id, participantSocket);
+        private void reconnectParticipant(Frame request, int id, String ip, int port, boolean sharedMemory) {
+            Registration current = participants.get(id);
+            Registration connecting = new Registration(State.CONNECTING, null);
+            if (current != null && current.state == State.OFFLINE && participants.replace(id, current, connecting)) {
+                connectParticipant(loop, id, new MessageLog.Endpoint(ip, port, sharedMemory), connecting, "Participant reconnected",
+                        response -> respond(request, response), e -> {
+                            System.err.println("Failed to reconnect participant " + id + " at " + ip + ":" + port + ": " + e.getMessage());
+                            participants.replace(id, connecting, new Registration(State.OFFLINE, null));
+                            respond(request, "Error processing request: " + e.getMessage());
+                        });
             } else {
-                response = "Participant is already connected or not found";
+                respond(request, "Participant is already connected or not found");
             }
-            out.writeUTF(response);
-            out.flush();
         }
 
-        private void disconnectParticipant(int id) throws IOException {
+        private void disconnectParticipant(Frame request, int id) throws IOException {
             String response;
-            if (participantMap.containsKey(id)) {
-                if (participantMap.get(id) != null) {
-                    participantMap.get(id).close();
+            Registration current = participants.get(id);
+            if (current != null && current.state == State.CONNECTING) {
+                response = "Participant is still connecting; disconnect once it is online"; // It would come online regardless
+            } else if (current != null) {
+                if (current.delivery != null && detach(id, current.delivery)) {
+                    current.delivery.close(true);
                 }
-                participantMap.put(id, null);
-                activeParticipants.remove((Integer) id);
                 response = "Participant disconnected";
             } else {
                 response = "Participant not found";
             }
-            out.writeUTF(response);
-            out.flush();
+            respond(request, response);
         }
 
-        private void multicastMessage(String message, int senderID) throws IOException {
-            if (!activeParticipants.contains(senderID)) {
-                out.writeUTF("Cannot send: participant not active");
-                out.flush();
+        // Only queues the messages; each participant's own loop writes them, so the ack never waits on a recipient.
+        // A batch is appended under one hold of the log lock, fanned out after it, and acknowledged once durable.
+        // Fan-out does not wait for the commit: a crash may lose what participants already hold, but the log never
+        // numbers a new message with a sequence it handed out before, so nothing sent later is taken for a duplicate.
+        // A null group sends to every online participant; otherwise only the group's members are visited
+        private void multicastMessage(Frame request, String group, List<byte[]> messages, int senderID, long received) throws IOException {
+            Registration sender = participants.get(senderID);
+            if (sender == null || sender.state != State.ONLINE) {
+                respond(request, "Cannot send: participant not active");
+                return;
+            }
+            if (group != null && !validGroup(group)) {
+                respond(request, "Usage: gsend [group] [message]");
+                return;
+            }
+            if (messages.isEmpty()) {
+                respond(request, "Empty batch");
+                return;
+            }
+            long retryAfter = admission.retryAfterMs(senderID, messages.size());
+            if (retryAfter > 0) {
+                respond(request, "Retry after " + retryAfter + " ms");
                 return;
             }
 
-            boolean atLeastOneSent = false;
-            List<Integer> failedParticipants = new ArrayList<>();
-            for (Integer participantID : activeParticipants) {
-                Socket socket = participantMap.get(participantID);
-                if (socket != null && !socket.isClosed()) {
+            List<MessageLog.Entry> entries = new ArrayList<>(messages.size());
+            FanOut fanOut = null;
+            long fanOutStart = System.nanoTime();
+            admission.started(messages.size());
+            try {
+                synchronized (messageLog) { // Sequence order and fan-out order must match for the cursors to hold
                     try {
-                        DataOutputStream participantOut = new DataOutputStream(socket.getOutputStream());
-                        participantOut.writeUTF(message);
-                        participantOut.writeUTF("eof");
-                        participantOut.flush();
-                        atLeastOneSent = true;
-                    } catch (IOException e) {
-                        System.err.println("Failed to send to participant " + participantID + ": " + e.getMessage());
-                        failedParticipants.add(participantID);
+                        byte[] groupName = group != null ? group.getBytes(StandardCharsets.UTF_8) : null;
+                        for (byte[] message : messages) {
+                            entries.add(saveMessageForOfflineParticipants(groupName, message, senderID));
+                        }
+                    } finally {
+                        if (!entries.isEmpty()) { // Whatever was appended is numbered, so it must reach the online participants
+                            fanOut = group == null ? new FanOut(entries, online.get(), null)
+                                    : new FanOut(entries, null, groups.getOrDefault(group, Collections.emptySet()).stream().mapToInt(Integer::intValue).toArray());
+                            pendingFanOuts.add(fanOut);
+                        }
                     }
                 }
+            } catch (IOException | RuntimeException e) {
+                admission.finished(messages.size());
+                throw e;
+            } finally {
+                if (fanOut != null) fanOutPending();
             }
-            for (Integer id : failedParticipants) {
-                if (participantMap.get(id) != null) {
-                    participantMap.get(id).close();
-                }
-                participantMap.put(id, null);
-                activeParticipants.remove((Integer) id);
+            if (fanOut.failure != null) { // Appended all the same, so acknowledged once durable like any other
+                System.err.println("Fan-out Error: " + fanOut.failure.getMessage());
             }
-            if (atLeastOneSent) {
-                out.writeUTF("Message Acknowledged");
+            boolean atLeastOneSent = fanOut.atLeastOneSent;
+            MessageLog.Entry entry = entries.get(entries.size() - 1);
+            metrics.fanOutMicros.record((System.nanoTime() - fanOutStart) / 1000);
+            metrics.publishBatchSizes.record(messages.size());
+            metrics.messagesSent.addAndGet(messages.size());
+            String response; // Appended either way: with no recipient online, the messages wait in the log for a reconnect
+            if (request.opcode == Frame.MSEND_BATCH) {
+                response = "Batch Acknowledged (" + messages.size() + (atLeastOneSent ? " messages)" : " messages, retained)");
             } else {
-                out.writeUTF("Message delivery failed to all participants");
-            }
-            saveMessageForOfflineParticipants(message, senderID);
-            out.flush();
-        }
-
-        private void saveMessageForOfflineParticipants(String message, int senderID) {
-            long timestamp = System.currentTimeMillis();
-            messageMap.put(timestamp, message);
-            List<Integer> nonRecipients = new ArrayList<>();
-            for (Integer participantID : participantMap.keySet()) {
-                if (!activeParticipants.contains(participantID)) {
-                    nonRecipients.add(participantID);
-                }
-            }
-            nonMessageRecipients.put(timestamp, nonRecipients);
-        }
-
-        private void resendPendingMessages(int participantID, Socket socket) throws IOException {
-            DataOutputStream resendOut = new DataOutputStream(socket.getOutputStream());
-            Iterator<Long> iterator = messageMap.keySet().iterator();
-            while (iterator.hasNext()) {
-                long messageTime = iterator.next();
-                if (System.currentTimeMillis() - messageTime > timeout * 1000) {
-                    iterator.remove();
-                    nonMessageRecipients.remove(messageTime);
-                } else if (nonMessageRecipients.getOrDefault(messageTime, new ArrayList<>()).contains(participantID)) {
-                    resendOut.writeUTF(messageMap.get(messageTime));
-                    resendOut.writeUTF("eof");
-                    resendOut.flush();
-                    nonMessageRecipients.get(messageTime).remove((Integer) participantID);
-                    if (nonMessageRecipients.get(messageTime).isEmpty()) {
-                        iterator.remove();
-                        nonMessageRecipients.remove(messageTime);
-                    }
-                }
+                response = atLeastOneSent ? "Message Acknowledged" : "Message Acknowledged (retained)";
             }
+            messageLog.commit(entry).whenComplete((ignored, e) -> loop.execute(() -> {
+                admission.finished(messages.size());
+                respond(request, e == null ? response : "Message could not be persisted: " + e.getMessage());
+                metrics.msendAckMicros.record((System.nanoTime() - received) / 1000);
+            }));
+        }
+
+        // Every message is stored once, as the frame it is delivered in; offline participants pick it up
+        // from their cursor when they reconnect
+        private MessageLog.Entry saveMessageForOfflineParticipants(byte[] group, byte[] message, int senderID) throws IOException {
+            return messageLog.appendMessage(System.currentTimeMillis(), senderID, group, message);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+// The Coordinator's metrics over JMX (e.g. jconsole). The setters below are the only way to change the admission limits
+// and request logging while it runs: participants can read them with stats but not change them.
+public interface CoordinatorMBean {
+    long getRequests();
+
+    long getMessagesSent();
+
+    int getOnlineParticipants();
+
+    int getRegisteredParticipants();
+
+    long getRetainedMessages();
+
+    long getRetainedBytes();
+
+    // Removed by the expiry engine once older than the retention timeout, since startup
+    long getExpiredMessages();
+
+    long getReclaimedBytes();
+
+    // Removed early because every registered participant had acknowledged them
+    long getCompactedMessages();
+
+    // How long the last start took to rebuild its state from the log and snapshot
+    long getRecoveryMillis();
+
+    long getBufferedBytes();
+
+    long getMemoryBudgetBytes();
+
+    long getSpilledBytes();
+
+    String getMsendAckLatencyMicros();
+
+    String getFanOutMicros();
+
+    String getReplayMicros();
+
+    // Same text as the stats command
+    String getReport();
+
+    // Admission control: per-sender token bucket and the global cap on unacknowledged messages
+    double getSenderRate();
+
+    void setSenderRate(double rate);
+
+    double getSenderBurst();
+
+    void setSenderBurst(double burst);
+
+    long getMaxInFlightMessages();
+
+    void setMaxInFlightMessages(long limit);
+
+    long getInFlightMessages();
+
+    int getRequestLogSampling();
+
+    void setRequestLogSampling(int sampling);
+}
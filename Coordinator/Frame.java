@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// Wire format shared by Coordinator and Participant; Coordinator/Frame.java and Participant/Frame.java must stay identical.
+// Every frame is: version (1) | opcode (1) | participant id (4) | sequence (8) | payload length (4) | checksum (4) | payload
+// The checksum is a CRC-32C of the header before it and of the payload. It travels with the frame into the log and back
+// out through zero-copy replay and the ring, so whoever decodes a frame catches corruption anywhere on the way.
+final class Frame {
+    static final byte VERSION = 2;
+    static final int HEADER_LENGTH = 1 + 1 + 4 + 8 + 4 + 4;
+    private static final int CHECKSUM_OFFSET = HEADER_LENGTH - 4;
+    static final int MAX_PAYLOAD = 16 << 20;
+
+    // Participant -> Coordinator requests; the sequence is echoed back in the response
+    static final byte REGISTER = 1;   // Payload: listen port (4) | flags (1) | address (UTF-8)
+    static final byte DEREGISTER = 2;
+    static final byte RECONNECT = 3;  // Payload: listen port (4) | flags (1) | address (UTF-8)
+    static final byte DISCONNECT = 4;
+    static final byte MSEND = 5;      // Payload: message bytes
+    // Coordinator -> Participant
+    static final byte RESPONSE = 6;   // Payload: response text (UTF-8)
+    static final byte MESSAGE = 7;    // Participant id is the sender, sequence the global message number; payload: timestamp (8) | message bytes
+    // Batched forms
+    static final byte MSEND_BATCH = 8;   // Payload: count (4) | count x (length (4) | message bytes)
+    static final byte MESSAGE_BATCH = 9; // Several MESSAGE frames back to back; sequence is that of the last one. Its checksum
+                                         // covers the header only: each frame inside carries its own
+    // Introspection
+    static final byte STATS = 10;        // Payload: empty; settings are changed over JMX only
+    // Groups; a plain msend still goes to every participant
+    static final byte SUBSCRIBE = 11;     // Payload: group name (UTF-8)
+    static final byte UNSUBSCRIBE = 12;   // Payload: group name (UTF-8)
+    static final byte GSEND = 13;         // Payload: group name length (1) | group name | message bytes
+    static final byte GROUP_MESSAGE = 14; // MESSAGE to one group; payload: timestamp (8) | group name length (1) | group name | message bytes
+    static final int MAX_GROUP = 255;     // Bytes in a group name
+    // Participant -> Coordinator on the delivery connection
+    static final byte ACK = 15;           // Cumulative: every message through this sequence has been received; no payload
+    static final byte HEARTBEAT = 16;     // Coordinator to participant on the delivery connection, echoed back; no payload
+    // Shared-memory delivery for participants on the Coordinator's host
+    static final byte RING = 17;          // Coordinator -> participant: read messages after this sequence from the ring; payload: start position (8) | ring file path (UTF-8)
+    static final byte RING_FALLBACK = 18; // Participant -> Coordinator: lapped by the ring writer; resend over TCP after this sequence
+    static final byte SHARED_MEMORY = 1;  // REGISTER/RECONNECT flag: deliver through the ring if on the same host
+
+    final byte opcode;
+    final int participantID;
+    final long sequence;
+    final byte[] payload;
+
+    Frame(byte opcode, int participantID, long sequence, byte[] payload) {
+        this.opcode = opcode;
+        this.participantID = participantID;
+        this.sequence = sequence;
+        this.payload = payload;
+    }
+
+    static Frame text(byte opcode, int participantID, long sequence, String text) {
+        return new Frame(opcode, participantID, sequence, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Frame address(byte opcode, int participantID, long sequence, String ip, int port) {
+        return new Frame(opcode, participantID, sequence, addressPayload(ip, port, (byte) 0));
+    }
+
+    static byte[] addressPayload(String ip, int port, byte flags) {
+        byte[] host = ip.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 + host.length).putInt(port).put(flags).put(host).array();
+    }
+
+    static Frame ring(int participantID, long sequence, long start, String path) {
+        byte[] file = path.getBytes(StandardCharsets.UTF_8);
+        return new Frame(RING, participantID, sequence, ByteBuffer.allocate(8 + file.length).putLong(start).put(file).array());
+    }
+
+    static Frame batch(int participantID, long sequence, List<byte[]> messages) {
+        int length = 4;
+        for (byte[] message : messages) length += 4 + message.length;
+        ByteBuffer payload = ByteBuffer.allocate(length).putInt(messages.size());
+        for (byte[] message : messages) payload.putInt(message.length).put(message);
+        return new Frame(MSEND_BATCH, participantID, sequence, payload.array());
+    }
+
+    // Every count and length is checked against what the payload holds before anything is allocated for it
+    List<byte[]> batchMessages() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int count = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+        if (count < 0 || count > payload.length / 4) throw new IOException("Invalid batch count " + count);
+        List<byte[]> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+            if (length < 0 || length > buffer.remaining()) throw new IOException("Invalid batch message length " + length);
+            byte[] message = new byte[length];
+            buffer.get(message);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    // Header of a MESSAGE_BATCH frame; the MESSAGE frames it wraps are written straight after it
+    static ByteBuffer batchHeader(int participantID, long sequence, int length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(VERSION).put(MESSAGE_BATCH).putInt(participantID).putLong(sequence).putInt(length).putInt(0);
+        return seal(header);
+    }
+
+    List<Frame> frames() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        Frame frame;
+        while ((frame = decode(buffer)) != null) frames.add(frame);
+        if (buffer.hasRemaining()) throw new IOException("Truncated batch frame");
+        return frames;
+    }
+
+    static byte[] groupPayload(byte[] group, byte[] message) {
+        return ByteBuffer.allocate(1 + group.length + message.length).put((byte) group.length).put(group).put(message).array();
+    }
+
+    // Builds a GROUP_MESSAGE frame in a single buffer, ready to be shared by every member
+    static ByteBuffer groupMessage(int senderID, long sequence, long timestamp, byte[] group, byte[] message) {
+        int length = 8 + 1 + group.length + message.length;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        frame.put(VERSION).put(GROUP_MESSAGE).putInt(senderID).putLong(sequence).putInt(length).putInt(0);
+        frame.putLong(timestamp).put((byte) group.length).put(group).put(message);
+        return seal(frame);
+    }
+
+    // Builds a MESSAGE frame in a single buffer, ready to be shared by every recipient
+    static ByteBuffer message(int senderID, long sequence, long timestamp, byte[] message, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + 8 + length);
+        frame.put(VERSION).put(MESSAGE).putInt(senderID).putLong(sequence).putInt(8 + length).putInt(0);
+        frame.putLong(timestamp).put(message, offset, length);
+        return seal(frame);
+    }
+
+    String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    int port() {
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    boolean sharedMemory() {
+        return (payload[4] & SHARED_MEMORY) != 0;
+    }
+
+    String host() {
+        return new String(payload, 5, payload.length - 5, StandardCharsets.UTF_8);
+    }
+
+    long ringStart() {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    String ringPath() {
+        return new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+    }
+
+    long timestamp() {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    // Offset of the group name length in a GSEND or GROUP_MESSAGE payload
+    private int groupOffset() {
+        return opcode == GROUP_MESSAGE ? 8 : 0;
+    }
+
+    String group() {
+        return new String(payload, groupOffset() + 1, payload[groupOffset()] & 0xff, StandardCharsets.UTF_8);
+    }
+
+    // Message bytes of a GSEND
+    byte[] groupMessageBytes() {
+        int start = 1 + (payload[0] & 0xff);
+        return Arrays.copyOfRange(payload, start, payload.length);
+    }
+
+    // Offset of the message bytes in a MESSAGE or GROUP_MESSAGE payload
+    private int messageOffset() {
+        return opcode == GROUP_MESSAGE ? 8 + 1 + (payload[8] & 0xff) : 8;
+    }
+
+    byte[] messageBytes() {
+        return Arrays.copyOfRange(payload, messageOffset(), payload.length);
+    }
+
+    String messageText() {
+        int start = messageOffset();
+        return new String(payload, start, payload.length - start, StandardCharsets.UTF_8);
+    }
+
+    ByteBuffer encode() {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.put(header()).put(payload);
+        return frame.flip();
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.write(header().array());
+        out.write(payload);
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(VERSION).put(opcode).putInt(participantID).putLong(sequence).putInt(payload.length);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, CHECKSUM_OFFSET);
+        if (opcode != MESSAGE_BATCH) crc.update(payload);
+        header.putInt((int) crc.getValue());
+        return header.flip();
+    }
+
+    static Frame readFrom(DataInputStream in) throws IOException {
+        byte version = in.readByte();
+        byte opcode = in.readByte();
+        int participantID = in.readInt();
+        long sequence = in.readLong();
+        int length = in.readInt();
+        checkHeader(version, length);
+        int checksum = in.readInt();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        Frame frame = new Frame(opcode, participantID, sequence, payload);
+        if (frame.header().getInt(CHECKSUM_OFFSET) != checksum) throw new IOException("Checksum mismatch in " + frame);
+        return frame;
+    }
+
+    // Total length of the frame starting at the buffer's position, or -1 if its header is not complete yet
+    static int frameLength(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) return -1;
+        int start = buffer.position();
+        int length = buffer.getInt(start + 14);
+        checkHeader(buffer.get(start), length);
+        return HEADER_LENGTH + length;
+    }
+
+    // Consumes one frame from a buffer in read mode, or returns null and leaves it untouched if the frame is incomplete
+    static Frame decode(ByteBuffer buffer) throws IOException {
+        int frameLength = frameLength(buffer);
+        if (frameLength < 0 || buffer.remaining() < frameLength) return null;
+        if (!intact(buffer, buffer.position())) {
+            throw new IOException("Checksum mismatch in " + name(buffer.get(buffer.position() + 1)) + " seq=" + buffer.getLong(buffer.position() + 6));
+        }
+        byte opcode = buffer.get(buffer.position() + 1);
+        int participantID = buffer.getInt(buffer.position() + 2);
+        long sequence = buffer.getLong(buffer.position() + 6);
+        byte[] payload = new byte[frameLength - HEADER_LENGTH];
+        buffer.position(buffer.position() + HEADER_LENGTH);
+        buffer.get(payload);
+        return new Frame(opcode, participantID, sequence, payload);
+    }
+
+    // Whether the complete frame at the given offset matches its checksum
+    static boolean intact(ByteBuffer buffer, int start) {
+        return buffer.getInt(start + CHECKSUM_OFFSET) == checksum(buffer, start);
+    }
+
+    private static int checksum(ByteBuffer buffer, int start) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(start + CHECKSUM_OFFSET).position(start));
+        if (buffer.get(start + 1) != MESSAGE_BATCH) {
+            crc.update(buffer.duplicate().limit(start + HEADER_LENGTH + buffer.getInt(start + 14)).position(start + HEADER_LENGTH));
+        }
+        return (int) crc.getValue();
+    }
+
+    // Fills in the checksum of a frame built in the buffer, and flips it for reading
+    private static ByteBuffer seal(ByteBuffer frame) {
+        frame.flip();
+        frame.putInt(CHECKSUM_OFFSET, checksum(frame, 0));
+        return frame;
+    }
+
+    private static void checkHeader(byte version, int length) throws IOException {
+        if (version != VERSION) throw new IOException("Unsupported protocol version " + version);
+        if (length < 0 || length > MAX_PAYLOAD) throw new IOException("Invalid payload length " + length);
+    }
+
+    static String name(int opcode) {
+        String[] names = {"?", "register", "deregister", "reconnect", "disconnect", "msend", "response", "message",
+                "msend batch", "message batch", "stats", "subscribe", "unsubscribe", "gsend", "group message", "ack",
+                "heartbeat", "ring", "ring fallback"};
+        return opcode > 0 && opcode < names.length ? names[opcode] : "opcode " + opcode;
+    }
+
+    @Override
+    public String toString() {
+        return name(opcode) + "#" + participantID + " seq=" + sequence + " (" + payload.length + " bytes)";
+    }
+}
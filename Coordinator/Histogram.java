@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Lock-free histogram, cheap enough to record on the event loops. As in HdrHistogram, each power of two is split into
+// SUB_BUCKETS linear buckets, so a reported value is at most 1/SUB_BUCKETS (about 3%) above the true one; values below
+// 2 * SUB_BUCKETS are exact. A power of two's buckets are only allocated once a value falls in it, so a histogram
+// (one per registered participant, among others) costs a few hundred bytes per power of two its values span.
+// Coordinator/Histogram.java and Participant/Histogram.java must stay identical.
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int GROUPS = 64 - SUB_BUCKET_BITS; // Up to Long.MAX_VALUE
+    private static final int BUCKETS = GROUPS * SUB_BUCKETS;
+
+    private final AtomicReferenceArray<AtomicLongArray> groups = new AtomicReferenceArray<>(GROUPS);
+
+    void record(long value) {
+        int bucket = bucket(Math.max(0, value));
+        AtomicLongArray group = groups.get(bucket / SUB_BUCKETS);
+        if (group == null) {
+            groups.compareAndSet(bucket / SUB_BUCKETS, null, new AtomicLongArray(SUB_BUCKETS));
+            group = groups.get(bucket / SUB_BUCKETS);
+        }
+        group.incrementAndGet(bucket % SUB_BUCKETS);
+    }
+
+    // Values below SUB_BUCKETS are their own bucket; above, the bits after the highest one pick the sub-bucket
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int highest = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highest - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    // Largest value that falls in the bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < GROUPS; i++) {
+            AtomicLongArray group = groups.get(i);
+            if (group == null) continue;
+            for (int j = 0; j < SUB_BUCKETS; j++) snapshot[i * SUB_BUCKETS + j] = group.get(j);
+        }
+        return snapshot;
+    }
+
+    long count() {
+        long total = 0;
+        for (long count : snapshot()) total += count;
+        return total;
+    }
+
+    // Value at the given percentile (0-100), reported as the upper bound of its bucket
+    long percentile(double percentile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) total += count;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(rank, 1)) return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    long max() {
+        long[] snapshot = snapshot();
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (snapshot[i] > 0) return upperBound(i);
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count() + " p50<=" + percentile(50) + " p99<=" + percentile(99) + " p999<=" + percentile(99.9) + " max<=" + max();
+    }
+}
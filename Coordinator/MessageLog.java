@@ -0,0 +1,951 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+// Segmented append-only log of every multicast, ordered by a global sequence number, plus the
+// delivered-up-to cursor of every registered participant. Segments hold MESSAGE frames exactly as
+// they go on the wire, so neither fan-out nor replay re-encodes a message.
+// A periodic snapshot keeps each segment's index and the participants that were online, so a restart
+// only scans what was appended after the snapshot rather than the whole retained history.
+class MessageLog implements Closeable {
+    enum FsyncPolicy {
+        ALWAYS,   // msend is acknowledged only after its record is on disk; concurrent appends share one fsync
+        INTERVAL, // fsync every fsyncIntervalMs
+        NEVER     // leave it to the OS
+    }
+
+    private static final byte CURSOR = 1;
+    private static final byte DEREGISTERED = 2;
+    private static final int CURSOR_RECORD = 1 + 4 + 8; // Type, participant, sequence
+    private static final long INDEX_INTERVAL = 64 * 1024; // Bytes between sparse index entries
+    private static final int READ_CHUNK = 1 << 20;
+    private static final int SNAPSHOT_MAGIC = 0x534e4150; // "SNAP"
+    static final long SEQUENCE_RESERVATION = 1 << 16; // Sequences numbered per write of the reservation file
+    private static final int SNAPSHOT_VERSION = 2; // 2: frames carry a checksum, so summaries of older segments no longer apply
+
+    // Result of an append: the frame to fan out and what to wait on for durability
+    static final class Entry {
+        final long sequence;
+        final long timestamp;
+        final ByteBuffer frame;
+        final long commitToken;
+
+        Entry(long sequence, long timestamp, ByteBuffer frame, long commitToken) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.frame = frame;
+            this.commitToken = commitToken;
+        }
+    }
+
+    static final class Message {
+        final long sequence;
+        final long timestamp;
+        final ByteBuffer frame;
+
+        Message(long sequence, long timestamp, ByteBuffer frame) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.frame = frame;
+        }
+    }
+
+    // One stretch of a segment to stream to a catching-up participant. A zero-copy span holds only messages the
+    // participant receives and goes out with transferTo, unread, for the participant to check against the checksums;
+    // any other span is read, checked and filtered chunk by chunk.
+    static final class Span {
+        final Segment segment;
+        long position;
+        final long end;
+        final long lastSequence;
+        final long messages; // Only known up front for zero-copy spans
+        final boolean zeroCopy;
+
+        Span(Segment segment, long position, long end, long lastSequence, long messages, boolean zeroCopy) {
+            this.segment = segment;
+            this.position = position;
+            this.end = end;
+            this.lastSequence = lastSequence;
+            this.messages = messages;
+            this.zeroCopy = zeroCopy;
+        }
+    }
+
+    // Where a participant takes deliveries; kept for those online at the last snapshot so a restart can reconnect them
+    static final class Endpoint {
+        final String host;
+        final int port;
+        final boolean sharedMemory;
+
+        Endpoint(String host, int port, boolean sharedMemory) {
+            this.host = host;
+            this.port = port;
+            this.sharedMemory = sharedMemory;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + (sharedMemory ? " (shm)" : "");
+        }
+    }
+
+    // What open() had to do, for the startup report
+    static final class Recovery {
+        final int segments;
+        final int fromSnapshot; // Segments whose index came from the snapshot; only their tails were scanned
+        final long scannedBytes;
+
+        Recovery(int segments, int fromSnapshot, long scannedBytes) {
+            this.segments = segments;
+            this.fromSnapshot = fromSnapshot;
+            this.scannedBytes = scannedBytes;
+        }
+    }
+
+    // What one expiry or compaction pass removed
+    static final class Expiry {
+        final int segments;
+        final long messages;
+        final long bytes;
+
+        Expiry(int segments, long messages, long bytes) {
+            this.segments = segments;
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+    }
+
+    static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        final NavigableMap<Long, Long> sparseIndex = new TreeMap<>(); // Sequence -> position, one per INDEX_INTERVAL
+        long size;
+        long lastIndexed = -INDEX_INTERVAL;
+        long firstSequence = -1;
+        long lastSequence = -1;
+        long firstTimestamp = Long.MAX_VALUE;
+        long lastTimestamp = Long.MIN_VALUE;
+        final Set<String> groups = new HashSet<>(); // Groups with messages in this segment
+
+        Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        // Everything scan() would rebuild, up to the current size
+        void writeSummary(DataOutputStream out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(lastIndexed);
+            out.writeLong(firstSequence);
+            out.writeLong(lastSequence);
+            out.writeLong(firstTimestamp);
+            out.writeLong(lastTimestamp);
+            out.writeInt(groups.size());
+            for (String group : groups) out.writeUTF(group);
+            out.writeInt(sparseIndex.size());
+            for (Map.Entry<Long, Long> point : sparseIndex.entrySet()) {
+                out.writeLong(point.getKey());
+                out.writeLong(point.getValue());
+            }
+        }
+
+        // Restores a summary for the first summarized bytes of the file; false (and untouched) if the file is shorter
+        boolean readSummary(DataInputStream in) throws IOException {
+            long summarized = in.readLong();
+            long indexed = in.readLong();
+            long first = in.readLong();
+            long last = in.readLong();
+            long firstTime = in.readLong();
+            long lastTime = in.readLong();
+            Set<String> summaryGroups = new HashSet<>();
+            for (int i = in.readInt(); i > 0; i--) summaryGroups.add(in.readUTF());
+            NavigableMap<Long, Long> index = new TreeMap<>();
+            for (int i = in.readInt(); i > 0; i--) index.put(in.readLong(), in.readLong());
+            if (summarized > size) return false;
+            size = summarized;
+            lastIndexed = indexed;
+            firstSequence = first;
+            lastSequence = last;
+            firstTimestamp = firstTime;
+            lastTimestamp = lastTime;
+            groups.addAll(summaryGroups);
+            sparseIndex.putAll(index);
+            return true;
+        }
+
+        void indexMessage(long sequence, long timestamp, long position) {
+            if (firstSequence < 0) firstSequence = sequence;
+            lastSequence = sequence;
+            firstTimestamp = Math.min(firstTimestamp, timestamp);
+            lastTimestamp = Math.max(lastTimestamp, timestamp);
+            if (position - lastIndexed >= INDEX_INTERVAL) {
+                sparseIndex.put(sequence, position);
+                lastIndexed = position;
+            }
+        }
+    }
+
+    private final Path directory;
+    private final long retentionMillis;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+    private final long groupCommitMs;
+
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<Integer, Long> cursors = new HashMap<>(); // Participant -> last sequence written to it
+    // Participant -> groups it receives, each with the head when it subscribed: it gets that group's messages after it
+    private final Map<Integer, Map<String, Long>> subscriptions = new HashMap<>();
+    private long subscriptionChanges = 0;
+    private final Object subscriptionsFileLock = new Object();
+    private long subscriptionChangesSaved = 0; // Guarded by subscriptionsFileLock
+    private final Map<Integer, Endpoint> endpoints = new HashMap<>(); // Online at the last snapshot, as loaded by open()
+    private FileChannel cursorFile;
+    private Segment active;
+    private long head = 0; // Sequence of the newest message
+    private long reservedThrough = 0; // No sequence past it has been numbered; on disk before one is
+    private long appendedBytes = 0; // Total bytes appended since startup, used as the commit token
+    private long expiredMessages = 0;
+    private long reclaimedBytes = 0;
+    private long compactedMessages = 0;
+    private long compactedBytes = 0;
+    private long snapshotBytes = 0;
+    private Recovery recovery;
+
+    private final Object flushLock = new Object();
+    private final List<Map.Entry<Long, CompletableFuture<Void>>> commitWaiters = new ArrayList<>(); // Guarded by flushLock
+    private volatile long durableBytes = 0;
+    private volatile boolean closed = false;
+    private Thread flusher;
+
+    MessageLog(Path directory, long retentionMillis, long segmentBytes, long segmentMillis,
+               FsyncPolicy fsyncPolicy, long fsyncIntervalMs, long groupCommitMs) {
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.groupCommitMs = groupCommitMs;
+    }
+
+    // Rebuilds cursors and indexes, then starts the flusher. A segment in the last snapshot is restored from its
+    // summary and scanned only past it; any other segment is scanned in full.
+    synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        loadCursors();
+        loadSubscriptions();
+        Map<Long, byte[]> summaries = loadSnapshot();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream) {
+                if (!file.getFileName().toString().equals("cursors.log")) files.add(file);
+            }
+        }
+        files.sort(Comparator.naturalOrder());
+        int fromSnapshot = 0;
+        long scannedBytes = 0;
+        for (Path file : files) {
+            long id = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+            Segment segment = new Segment(id, file);
+            long fileSize = segment.size;
+            byte[] summary = summaries.get(id);
+            long from = 0;
+            if (summary != null && segment.readSummary(new DataInputStream(new ByteArrayInputStream(summary)))) {
+                from = segment.size;
+                head = Math.max(head, segment.lastSequence);
+                fromSnapshot++;
+            }
+            scan(segment, from);
+            scannedBytes += fileSize - from;
+            segments.addLast(segment);
+        }
+        recovery = new Recovery(files.size(), fromSnapshot, scannedBytes);
+        if (files.isEmpty()) {
+            Files.deleteIfExists(directory.resolve("snapshot.dat")); // Its segment ids are about to be reused
+        }
+        active = segments.peekLast();
+        if (active == null) {
+            roll();
+        }
+        reservedThrough = loadReservation();
+        if (reservedThrough > head) { // Numbered and fanned out, but lost before it reached the disk
+            head = reservedThrough;
+            if (active.firstSequence >= 0) roll(); // A segment's sequences stay contiguous
+        }
+        deleteExpiredSegments(System.currentTimeMillis(), Integer.MAX_VALUE);
+
+        flusher = new Thread(this::flushLoop, "LogFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Reads the segment from the given position in chunks, checking every frame against its checksum; the first torn
+    // or corrupt frame ends the segment
+    private void scan(Segment segment, long position) throws IOException {
+        long size = segment.channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_CHUNK, Math.max(size - position, Frame.HEADER_LENGTH + 8)));
+        boolean broken = false;
+        while (!broken && position + Frame.HEADER_LENGTH + 8 <= size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            readFully(segment.channel, buffer, position);
+            buffer.flip();
+            long chunkStart = position;
+            while (buffer.remaining() >= Frame.HEADER_LENGTH + 8) {
+                int start = buffer.position();
+                byte version = buffer.get(start);
+                byte opcode = buffer.get(start + 1);
+                int length = buffer.getInt(start + 14);
+                if (version > 0 && version < Frame.VERSION && position == 0) {
+                    throw new IOException(segment.path + " holds protocol version " + version + " frames; move the log directory aside");
+                }
+                if (version != Frame.VERSION || (opcode != Frame.MESSAGE && opcode != Frame.GROUP_MESSAGE) || length < 8 || length > Frame.MAX_PAYLOAD
+                        || position + Frame.HEADER_LENGTH + length > size) {
+                    broken = true;
+                    break;
+                }
+                if (buffer.remaining() < Frame.HEADER_LENGTH + length) break; // Read again from here
+                if (!Frame.intact(buffer, start)) {
+                    broken = true;
+                    break;
+                }
+                long sequence = buffer.getLong(start + 6);
+                segment.indexMessage(sequence, buffer.getLong(start + Frame.HEADER_LENGTH), position);
+                if (opcode == Frame.GROUP_MESSAGE) {
+                    segment.groups.add(group(buffer, start));
+                }
+                head = Math.max(head, sequence);
+                position += Frame.HEADER_LENGTH + length;
+                buffer.position(start + Frame.HEADER_LENGTH + length);
+            }
+            if (position == chunkStart && !broken) buffer = ByteBuffer.allocate(buffer.capacity() * 2); // Frame larger than the chunk
+        }
+        if (position < size) {
+            System.err.println("Truncating torn or corrupt tail of " + segment.path + " at " + position);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private void loadCursors() throws IOException {
+        cursorFile = FileChannel.open(directory.resolve("cursors.log"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = cursorFile.size() - cursorFile.size() % CURSOR_RECORD; // Drop a torn last record
+        ByteBuffer records = ByteBuffer.allocate((int) size);
+        readFully(cursorFile, records, 0);
+        records.flip();
+        while (records.hasRemaining()) {
+            byte type = records.get();
+            int participantID = records.getInt();
+            long sequence = records.getLong();
+            if (type == CURSOR) {
+                cursors.put(participantID, sequence);
+                head = Math.max(head, sequence); // Keeps numbering monotonic even if every message segment expired
+            } else {
+                cursors.remove(participantID);
+            }
+        }
+        cursorFile.truncate(size);
+        cursorFile.position(size);
+    }
+
+    // Snapshot: magic (4) | version (4) | head (8) | endpoint count (4) | count x (participant (4) | host | port (4) |
+    // shared memory (1)) | segment count (4) | count x (segment id (8) | summary length (4) | summary) | CRC-32 (8).
+    // Returns the segment summaries by id; an unreadable snapshot is ignored, which only costs a full scan.
+    private Map<Long, byte[]> loadSnapshot() throws IOException {
+        Path file = directory.resolve("snapshot.dat");
+        if (!Files.exists(file)) return Collections.emptyMap();
+        byte[] bytes = Files.readAllBytes(file);
+        Map<Long, byte[]> summaries = new HashMap<>();
+        try {
+            if (bytes.length < 8) throw new IOException("truncated");
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) throw new IOException("not a snapshot");
+            if (ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != crc.getValue()) throw new IOException("checksum mismatch");
+            head = Math.max(head, in.readLong());
+            for (int i = in.readInt(); i > 0; i--) {
+                int participantID = in.readInt();
+                Endpoint endpoint = new Endpoint(in.readUTF(), in.readInt(), in.readBoolean());
+                if (cursors.containsKey(participantID)) endpoints.put(participantID, endpoint); // Not deregistered since
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                long id = in.readLong();
+                byte[] summary = new byte[in.readInt()];
+                in.readFully(summary);
+                summaries.put(id, summary);
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable snapshot " + file + ": " + e.getMessage());
+            endpoints.clear();
+            return Collections.emptyMap();
+        }
+        return summaries;
+    }
+
+    // Saves every segment's summary and where the given participants listen, replacing the last snapshot atomically.
+    // The summaries are copied under the lock; the file is written and fsynced outside it, so appends are not held up.
+    // A restart trusts a summary without scanning what it covers, so the segments are forced first, whatever the fsync
+    // policy: a summary never covers bytes that a crash could still lose.
+    void writeSnapshot(Map<Integer, Endpoint> online) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        ByteArrayOutputStream summary = new ByteArrayOutputStream();
+        List<FileChannel> summarized = new ArrayList<>();
+        synchronized (this) {
+            out.writeLong(head);
+            out.writeInt(online.size());
+            for (Map.Entry<Integer, Endpoint> participant : online.entrySet()) {
+                out.writeInt(participant.getKey());
+                out.writeUTF(participant.getValue().host);
+                out.writeInt(participant.getValue().port);
+                out.writeBoolean(participant.getValue().sharedMemory);
+            }
+            out.writeInt(segments.size());
+            for (Segment segment : segments) {
+                summary.reset();
+                segment.writeSummary(new DataOutputStream(summary));
+                out.writeLong(segment.id);
+                out.writeInt(summary.size());
+                summary.writeTo(out);
+                summarized.add(segment.channel);
+            }
+        }
+        for (FileChannel channel : summarized) {
+            try {
+                channel.force(false); // Sealed segments were forced when rolled (unless fsyncPolicy=never), so cost nothing
+            } catch (ClosedChannelException e) {
+                // Expired meanwhile; its summary is never matched to a file again
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        Path saved = directory.resolve("snapshot.dat.tmp");
+        try (FileChannel file = FileChannel.open(saved, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) file.write(buffer);
+            file.force(true);
+        }
+        Files.move(saved, directory.resolve("snapshot.dat"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            snapshotBytes = bytes.size();
+        }
+    }
+
+    // Participants online at the last snapshot that are still registered
+    synchronized Map<Integer, Endpoint> endpoints() {
+        return new HashMap<>(endpoints);
+    }
+
+    synchronized Recovery recovery() {
+        return recovery;
+    }
+
+    synchronized long snapshotBytes() {
+        return snapshotBytes;
+    }
+
+    // Subscriptions change rarely, so the file is simply rewritten: one "participant group since" line each.
+    // Lines without a since (from before it was kept) count from the start; unreadable lines are skipped.
+    private void loadSubscriptions() throws IOException {
+        Path file = directory.resolve("subscriptions.txt");
+        if (!Files.exists(file)) return;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] subscription = line.split(" ");
+            int participantID;
+            long since;
+            try {
+                if (subscription.length < 2 || subscription.length > 3 || subscription[1].isEmpty()) throw new NumberFormatException();
+                participantID = Integer.parseInt(subscription[0]);
+                since = subscription.length == 3 ? Long.parseLong(subscription[2]) : 0;
+            } catch (NumberFormatException e) {
+                System.err.println("Skipping unreadable line in " + file + ": " + line);
+                continue;
+            }
+            if (cursors.containsKey(participantID)) { // Lines of deregistered participants are dropped at the next save
+                subscriptions.computeIfAbsent(participantID, id -> new HashMap<>()).put(subscription[1], since);
+            }
+        }
+    }
+
+    // Called outside the log lock: the change is already in effect and only copied under it, and the file is
+    // rewritten and fsynced under a lock of its own. A rewrite that a later one already covers is skipped.
+    void saveSubscriptions() throws IOException {
+        StringBuilder lines = new StringBuilder();
+        long changes;
+        synchronized (this) {
+            changes = subscriptionChanges;
+            for (Map.Entry<Integer, Map<String, Long>> participant : subscriptions.entrySet()) {
+                for (Map.Entry<String, Long> group : participant.getValue().entrySet()) {
+                    lines.append(participant.getKey()).append(' ').append(group.getKey()).append(' ').append(group.getValue()).append('\n');
+                }
+            }
+        }
+        synchronized (subscriptionsFileLock) {
+            if (changes <= subscriptionChangesSaved) return;
+            Path saved = directory.resolve("subscriptions.txt.tmp");
+            try (FileChannel out = FileChannel.open(saved, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) out.write(bytes);
+                out.force(true);
+            }
+            Files.move(saved, directory.resolve("subscriptions.txt"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            subscriptionChangesSaved = changes;
+        }
+    }
+
+    synchronized Map<Integer, Set<String>> subscriptions() {
+        Map<Integer, Set<String>> copy = new HashMap<>();
+        subscriptions.forEach((id, groups) -> copy.put(id, new HashSet<>(groups.keySet())));
+        return copy;
+    }
+
+    // Group -> the sequence the participant's subscription counts from
+    synchronized Map<String, Long> subscriptions(int participantID) {
+        return new HashMap<>(subscriptions.getOrDefault(participantID, Collections.emptyMap()));
+    }
+
+    // Takes effect at the current head; persisted by the next saveSubscriptions()
+    synchronized boolean subscribe(int participantID, String group) {
+        Map<String, Long> groups = subscriptions.computeIfAbsent(participantID, id -> new HashMap<>());
+        if (groups.containsKey(group)) return false;
+        groups.put(group, head);
+        subscriptionChanges++;
+        return true;
+    }
+
+    synchronized boolean unsubscribe(int participantID, String group) {
+        Map<String, Long> groups = subscriptions.get(participantID);
+        if (groups == null || groups.remove(group) == null) return false;
+        if (groups.isEmpty()) subscriptions.remove(participantID);
+        subscriptionChanges++;
+        return true;
+    }
+
+    // A null group is a plain msend, delivered to every participant
+    synchronized Entry appendMessage(long timestamp, int senderID, byte[] group, byte[] message) throws IOException {
+        if (active.size >= segmentBytes || (active.size > 0 && timestamp - active.firstTimestamp >= segmentMillis)) {
+            roll();
+        }
+        long sequence = head + 1;
+        if (sequence > reservedThrough) {
+            saveReservation(sequence + SEQUENCE_RESERVATION - 1);
+        }
+        ByteBuffer frame = group == null
+                ? Frame.message(senderID, sequence, timestamp, message, 0, message.length)
+                : Frame.groupMessage(senderID, sequence, timestamp, group, message);
+        long position = active.size;
+        ByteBuffer record = frame.duplicate();
+        while (record.hasRemaining()) {
+            active.channel.write(record, position + record.position());
+        }
+        active.size += frame.remaining();
+        active.indexMessage(sequence, timestamp, position);
+        if (group != null) {
+            active.groups.add(new String(group, StandardCharsets.UTF_8));
+        }
+        appendedBytes += frame.remaining();
+        head = sequence;
+        return new Entry(sequence, timestamp, frame.asReadOnlyBuffer(), appendedBytes);
+    }
+
+    synchronized long head() {
+        return head;
+    }
+
+    synchronized Map<Integer, Long> cursors() {
+        return new HashMap<>(cursors);
+    }
+
+    synchronized Long cursor(int participantID) {
+        return cursors.get(participantID);
+    }
+
+    // Records how far a participant has been served; written on registration and whenever it goes offline
+    synchronized void saveCursor(int participantID, long sequence) throws IOException {
+        cursors.put(participantID, sequence);
+        appendCursor(CURSOR, participantID, sequence);
+    }
+
+    synchronized void removeCursor(int participantID) throws IOException {
+        if (cursors.remove(participantID) != null) {
+            appendCursor(DEREGISTERED, participantID, 0);
+        }
+        if (subscriptions.remove(participantID) != null) {
+            subscriptionChanges++; // Left in the file until the next save; without a cursor, loading ignores it
+        }
+    }
+
+    private void appendCursor(byte type, int participantID, long sequence) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(CURSOR_RECORD);
+        record.put(type).putInt(participantID).putLong(sequence).flip();
+        while (record.hasRemaining()) {
+            cursorFile.write(record);
+        }
+        if (cursorFile.size() > Math.max(64 * 1024, 4L * CURSOR_RECORD * cursors.size())) {
+            compactCursors();
+        }
+    }
+
+    // Rewrites the cursor file with only the live cursors and swaps it in atomically
+    private void compactCursors() throws IOException {
+        Path compacted = directory.resolve("cursors.log.tmp");
+        ByteBuffer records = ByteBuffer.allocate(CURSOR_RECORD * cursors.size());
+        for (Map.Entry<Integer, Long> cursor : cursors.entrySet()) {
+            records.put(CURSOR).putInt(cursor.getKey()).putLong(cursor.getValue());
+        }
+        records.flip();
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (records.hasRemaining()) out.write(records);
+            out.force(true);
+        }
+        cursorFile.close();
+        Files.move(compacted, directory.resolve("cursors.log"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cursorFile = FileChannel.open(directory.resolve("cursors.log"), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        cursorFile.position(cursorFile.size());
+    }
+
+    // Messages are fanned out before they are durable, so a crash can lose sequences that participants have already
+    // seen, and a participant drops anything at or below what it last received. Numbering therefore resumes past
+    // every sequence that may have been handed out: the reservation is forced before any sequence in it is used,
+    // whatever the fsync policy, and covers SEQUENCE_RESERVATION appends; a clean close hands back what is unused.
+    // File: reserved through (8) | CRC-32 (8).
+    private long loadReservation() throws IOException {
+        Path file = directory.resolve("sequence.dat");
+        if (!Files.exists(file)) return 0;
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, Math.min(8, bytes.limit()));
+        if (bytes.limit() != 16 || bytes.getLong(8) != crc.getValue()) {
+            throw new IOException(file + " is unreadable; numbering could reuse sequences that participants have seen");
+        }
+        return bytes.getLong(0);
+    }
+
+    private void saveReservation(long through) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(16);
+        bytes.putLong(through);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array(), 0, 8);
+        bytes.putLong(crc.getValue()).flip();
+        Path saved = directory.resolve("sequence.dat.tmp");
+        try (FileChannel file = FileChannel.open(saved, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) file.write(bytes);
+            file.force(true);
+        }
+        Files.move(saved, directory.resolve("sequence.dat"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        reservedThrough = through;
+    }
+
+    private void roll() throws IOException {
+        if (active != null && fsyncPolicy != FsyncPolicy.NEVER) {
+            active.channel.force(false); // Later commits only fsync the new segment
+        }
+        long id = active == null ? 0 : active.id + 1;
+        active = new Segment(id, directory.resolve(String.format("%020d.log", id)));
+        segments.addLast(active);
+    }
+
+    // Reads every unexpired message after the given sequence with one sequential read per segment; group messages
+    // are only kept for the given groups, and are skipped without being copied otherwise
+    List<Message> readAfter(long afterSequence, long now, Map<String, Long> groups) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        for (Span span : catchUpPlan(afterSequence, now, groups)) {
+            try {
+                while (span.position < span.end) {
+                    messages.addAll(readSpan(span, afterSequence, now, groups));
+                }
+            } catch (ClosedChannelException e) {
+                // Segment expired meanwhile
+            }
+        }
+        return messages;
+    }
+
+    // Everything after the given sequence as it stands now; later appends are not included.
+    // A segment can go out zero-copy when none of its messages has expired and the participant is in all its groups.
+    synchronized Deque<Span> catchUpPlan(long afterSequence, long now, Map<String, Long> groups) throws IOException {
+        Deque<Span> plan = new ArrayDeque<>();
+        for (Segment segment : segments) {
+            if (segment.lastSequence <= afterSequence) continue;
+            long position = 0;
+            if (segment.firstSequence <= afterSequence) {
+                position = positionAfter(segment, afterSequence);
+            }
+            boolean zeroCopy = now - segment.firstTimestamp <= retentionMillis && receivesAll(segment, groups);
+            if (!zeroCopy) {
+                plan.add(new Span(segment, position, segment.size, segment.lastSequence, 0, false));
+                continue;
+            }
+            // Cut at the sparse index points, so a zero-copy stream reports progress every INDEX_INTERVAL bytes
+            long firstSequence = Math.max(afterSequence + 1, segment.firstSequence);
+            for (Map.Entry<Long, Long> point : segment.sparseIndex.tailMap(firstSequence, false).entrySet()) {
+                plan.add(new Span(segment, position, point.getValue(), point.getKey() - 1, point.getKey() - firstSequence, true));
+                position = point.getValue();
+                firstSequence = point.getKey();
+            }
+            plan.add(new Span(segment, position, segment.size, segment.lastSequence, segment.lastSequence - firstSequence + 1, true));
+        }
+        return plan;
+    }
+
+    // Position of the first frame after the given sequence, found from the sparse index and a walk over the headers
+    private long positionAfter(Segment segment, long afterSequence) throws IOException {
+        Map.Entry<Long, Long> floor = segment.sparseIndex.floorEntry(afterSequence + 1);
+        long position = floor != null ? floor.getValue() : 0;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(INDEX_INTERVAL, Math.max(segment.size - position, Frame.HEADER_LENGTH)));
+        long bufferStart = -1;
+        while (position < segment.size) {
+            if (bufferStart < 0 || position + Frame.HEADER_LENGTH > bufferStart + buffer.limit()) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), segment.size - position));
+                readFully(segment.channel, buffer, position);
+                buffer.flip();
+                bufferStart = position;
+            }
+            int offset = (int) (position - bufferStart);
+            if (buffer.getLong(offset + 6) > afterSequence) break;
+            position += Frame.HEADER_LENGTH + buffer.getInt(offset + 14);
+        }
+        return position;
+    }
+
+    // Reads the next chunk of a span, advancing it, and returns the messages in it that the participant receives.
+    // The returned frames are slices of one buffer, so a chunk can be written with a single gathering write.
+    List<Message> readSpan(Span span, long afterSequence, long now, Map<String, Long> groups) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_CHUNK, Math.max(span.end - span.position, Frame.HEADER_LENGTH)));
+        while (true) {
+            buffer.limit((int) Math.min(buffer.capacity(), span.end - span.position));
+            readFully(span.segment.channel, buffer, span.position);
+            buffer.flip();
+            int consumed = 0;
+            int frameLength;
+            while ((frameLength = Frame.frameLength(buffer)) > 0 && buffer.remaining() >= frameLength) {
+                int start = buffer.position();
+                long sequence = buffer.getLong(start + 6);
+                long timestamp = buffer.getLong(start + Frame.HEADER_LENGTH);
+                if (sequence > afterSequence && now - timestamp <= retentionMillis && inGroups(buffer, start, sequence, groups)) {
+                    if (Frame.intact(buffer, start)) {
+                        messages.add(new Message(sequence, timestamp, buffer.duplicate().position(start).limit(start + frameLength).slice()));
+                    } else {
+                        System.err.println("Skipping corrupt message " + sequence + " in " + span.segment.path);
+                    }
+                }
+                buffer.position(start + frameLength);
+                consumed = buffer.position();
+            }
+            if (consumed > 0) {
+                span.position += consumed;
+                return messages;
+            }
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2); // Frame larger than the chunk
+        }
+    }
+
+    // Group name of the GROUP_MESSAGE frame at the given offset
+    private static String group(ByteBuffer buffer, int start) {
+        int lengthAt = start + Frame.HEADER_LENGTH + 8;
+        byte[] group = new byte[buffer.get(lengthAt) & 0xff];
+        buffer.duplicate().position(lengthAt + 1).get(group);
+        return new String(group, StandardCharsets.UTF_8);
+    }
+
+    // Whether a participant with these subscriptions receives the frame at the given offset
+    private static boolean inGroups(ByteBuffer buffer, int start, long sequence, Map<String, Long> groups) {
+        if (buffer.get(start + 1) != Frame.GROUP_MESSAGE) return true;
+        Long since = groups.get(group(buffer, start));
+        return since != null && sequence > since;
+    }
+
+    // Whether the participant receives every group message in the segment, having subscribed before any was sent
+    private static boolean receivesAll(Segment segment, Map<String, Long> groups) {
+        for (String group : segment.groups) {
+            Long since = groups.get(group);
+            if (since == null || since >= segment.firstSequence) return false;
+        }
+        return true;
+    }
+
+    // Drops whole segments whose newest message is older than the retention timeout, oldest first,
+    // at most maxSegments per call so one pass never holds the log lock for long
+    synchronized Expiry deleteExpiredSegments(long now, int maxSegments) throws IOException {
+        if (active.firstSequence >= 0 && now - active.lastTimestamp > retentionMillis) {
+            roll();
+        }
+        Expiry expiry = deleteOldest(segment -> segment.firstSequence < 0 || now - segment.lastTimestamp > retentionMillis, maxSegments);
+        expiredMessages += expiry.messages;
+        reclaimedBytes += expiry.bytes;
+        return expiry;
+    }
+
+    // Compaction: drops whole sealed segments that every registered participant has acknowledged, i.e. nothing after
+    // the given sequence, however young they are. Nobody can ask for them again: a participant's catch-up starts
+    // after its cursor and a new one starts at the head.
+    synchronized Expiry compact(long acknowledgedUpTo, int maxSegments) throws IOException {
+        Expiry compaction = deleteOldest(segment -> segment.lastSequence <= acknowledgedUpTo, maxSegments);
+        compactedMessages += compaction.messages;
+        compactedBytes += compaction.bytes;
+        return compaction;
+    }
+
+    private Expiry deleteOldest(Predicate<Segment> removable, int maxSegments) throws IOException {
+        int deleted = 0;
+        long messages = 0;
+        long bytes = 0;
+        Iterator<Segment> iterator = segments.iterator();
+        while (iterator.hasNext() && deleted < maxSegments) {
+            Segment segment = iterator.next();
+            if (segment == active || !removable.test(segment)) break;
+            iterator.remove();
+            if (segment.firstSequence >= 0) {
+                messages += segment.lastSequence - segment.firstSequence + 1;
+            }
+            bytes += segment.size;
+            deleted++;
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+        return new Expiry(deleted, messages, bytes);
+    }
+
+    // Messages and bytes still on disk, whether or not any participant still needs them
+    synchronized long retainedMessages() {
+        long messages = 0;
+        for (Segment segment : segments) {
+            if (segment.firstSequence >= 0) messages += segment.lastSequence - segment.firstSequence + 1;
+        }
+        return messages;
+    }
+
+    synchronized long retainedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) bytes += segment.size;
+        return bytes;
+    }
+
+    synchronized long expiredMessages() {
+        return expiredMessages;
+    }
+
+    synchronized long reclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    synchronized long compactedMessages() {
+        return compactedMessages;
+    }
+
+    synchronized long compactedBytes() {
+        return compactedBytes;
+    }
+
+    // Completes once the entry is as durable as the fsync policy promises
+    CompletableFuture<Void> commit(Entry entry) {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS || entry.commitToken <= durableBytes) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (flushLock) {
+            commitWaiters.add(new AbstractMap.SimpleEntry<>(entry.commitToken, future));
+            flushLock.notifyAll();
+        }
+        return future;
+    }
+
+    // Group commit: every append that arrives while an fsync is running is covered by the next single fsync
+    private void flushLoop() {
+        while (!closed) {
+            try {
+                synchronized (flushLock) {
+                    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                        while (commitWaiters.isEmpty() && !closed) flushLock.wait();
+                    } else {
+                        flushLock.wait(fsyncIntervalMs);
+                    }
+                }
+                if (closed || fsyncPolicy == FsyncPolicy.NEVER) continue;
+                if (groupCommitMs > 0) {
+                    Thread.sleep(groupCommitMs); // Let more appenders join this group
+                }
+                long target;
+                FileChannel channel;
+                FileChannel cursorChannel;
+                synchronized (this) {
+                    target = appendedBytes;
+                    channel = active.channel;
+                    cursorChannel = cursorFile;
+                }
+                IOException failure = null;
+                try {
+                    channel.force(false);
+                    cursorChannel.force(false);
+                    durableBytes = target;
+                } catch (IOException e) {
+                    failure = e;
+                }
+                completeWaiters(target, failure);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void completeWaiters(long target, IOException failure) {
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        synchronized (flushLock) {
+            Iterator<Map.Entry<Long, CompletableFuture<Void>>> iterator = commitWaiters.iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Long, CompletableFuture<Void>> waiter = iterator.next();
+                if (failure != null || waiter.getKey() <= target) {
+                    done.add(waiter.getValue());
+                    iterator.remove();
+                }
+            }
+        }
+        for (CompletableFuture<Void> future : done) {
+            if (failure != null) future.completeExceptionally(failure);
+            else future.complete(null);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+        if (reservedThrough > head) { // Hands the unused sequences back once everything numbered is on disk
+            active.channel.force(false);
+            saveReservation(head);
+        }
+        for (Segment segment : segments) {
+            if (fsyncPolicy != FsyncPolicy.NEVER && segment == active) segment.channel.force(false);
+            segment.channel.close();
+        }
+        if (fsyncPolicy != FsyncPolicy.NEVER) cursorFile.force(false);
+        cursorFile.close();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters and histograms updated on the event loops; every update is a handful of atomic increments,
+// so they stay on even under load. Latencies are in microseconds.
+class Metrics {
+    private static final int OPCODES = 32;
+    private static final int UNKNOWN = 0; // Bucket for opcodes no request uses; 0 is never one
+
+    static final class ParticipantMetrics {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong delivered = new AtomicLong();
+        final Histogram deliveryMicros = new Histogram(); // Queued until fully written to the participant
+    }
+
+    private final AtomicLongArray requests = new AtomicLongArray(OPCODES);
+    private final Histogram[] handlingMicros = new Histogram[OPCODES];
+    private final Map<Integer, ParticipantMetrics> participants = new ConcurrentHashMap<>(); // Registered participants only
+    private final ParticipantMetrics untracked = new ParticipantMetrics(); // Counts for any other id, never reported
+    private final AtomicLong requestCount = new AtomicLong();
+    private volatile int requestLogSampling; // Log one request in this many; 0 turns request logging off
+
+    final AtomicLong messagesSent = new AtomicLong();
+    final Histogram msendAckMicros = new Histogram();    // Request decoded until its ack is queued
+    final Histogram fanOutMicros = new Histogram();      // Append and queue to every online participant, per request
+    final Histogram replayMicros = new Histogram();      // Catch-up from the log after a (re)connect, until live
+    final Histogram replayedMessages = new Histogram();
+    final Histogram publishBatchSizes = new Histogram();  // Messages per msend / msend batch
+    final Histogram deliveryBatchSizes = new Histogram(); // Messages per write to a participant
+    final AtomicLong spills = new AtomicLong();           // Outbound queues dropped for streaming from the log instead
+    final AtomicLong spilledMessages = new AtomicLong();
+    final AtomicLong spilledBytes = new AtomicLong();
+    final AtomicLong ringFallbacks = new AtomicLong();    // Ring readers lapped by the writer and resent over TCP
+    final Histogram snapshotMicros = new Histogram();     // Writing a state snapshot, cursors included; compaction after it is not
+    private long lastSpilledBytes = 0; // As of the last spillRate() call
+    private long lastSpillRateNanos = System.nanoTime();
+
+    Metrics(int requestLogSampling) {
+        this.requestLogSampling = requestLogSampling;
+        for (int i = 0; i < OPCODES; i++) handlingMicros[i] = new Histogram();
+    }
+
+    // Counts the request and says whether it is one to log. Requests naming an unregistered id count only in the total.
+    boolean request(Frame request) {
+        requests.incrementAndGet(index(request.opcode));
+        ParticipantMetrics counters = participants.get(request.participantID);
+        if (counters != null) counters.requests.incrementAndGet();
+        long count = requestCount.incrementAndGet();
+        int sampling = requestLogSampling;
+        return sampling > 0 && count % sampling == 0;
+    }
+
+    void handled(Frame request, long startNanos) {
+        handlingMicros[index(request.opcode)].record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    private static int index(int opcode) {
+        return opcode > 0 && opcode < OPCODES ? opcode : UNKNOWN;
+    }
+
+    // Called as a participant is registered or recovered; forget() drops it again
+    void register(int participantID) {
+        participants.putIfAbsent(participantID, new ParticipantMetrics());
+    }
+
+    ParticipantMetrics participant(int participantID) {
+        return participants.getOrDefault(participantID, untracked);
+    }
+
+    void forget(int participantID) {
+        participants.remove(participantID);
+    }
+
+    long requests() {
+        return requestCount.get();
+    }
+
+    int requestLogSampling() {
+        return requestLogSampling;
+    }
+
+    void requestLogSampling(int sampling) {
+        requestLogSampling = Math.max(0, sampling);
+    }
+
+    // Bytes spilled per second since the previous call
+    synchronized double spillRate() {
+        long now = System.nanoTime();
+        long bytes = spilledBytes.get();
+        double rate = (bytes - lastSpilledBytes) * 1e9 / Math.max(1, now - lastSpillRateNanos);
+        lastSpilledBytes = bytes;
+        lastSpillRateNanos = now;
+        return rate;
+    }
+
+    // One line per request type seen so far
+    void appendRequests(StringBuilder report) {
+        for (int i = 0; i < OPCODES; i++) {
+            long count = requests.get(i);
+            if (count == 0) continue;
+            report.append(String.format("  %-12s %d, handled in us: %s%n", i == UNKNOWN ? "unknown" : Frame.name(i), count, handlingMicros[i]));
+        }
+    }
+}
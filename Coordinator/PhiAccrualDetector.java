@@ -0,0 +1,54 @@
+// Phi-accrual failure detector (Hayashibara et al.). Instead of a fixed timeout, the silence since the last
+// heartbeat is judged against the recent inter-arrival times: phi = -log10(P(a heartbeat arrives this late)),
+// so phi 8 means a one in 10^8 chance the participant is alive but slow. Times are in milliseconds.
+// Only touched by the owning event loop.
+class PhiAccrualDetector {
+    private static final int WINDOW = 100; // Most recent intervals kept
+
+    private final long[] intervals = new long[WINDOW];
+    private final double minStdDev; // Keeps a very regular link from turning one late heartbeat into a failure
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0;
+    private double sumOfSquares = 0;
+    private long lastArrival;
+
+    // Seeded with the expected interval so the first heartbeats are judged sensibly
+    PhiAccrualDetector(long expectedIntervalMs, long now) {
+        this.minStdDev = Math.max(1, expectedIntervalMs / 2.0);
+        this.lastArrival = now;
+        record(expectedIntervalMs);
+    }
+
+    void heartbeat(long now) {
+        record(now - lastArrival);
+        lastArrival = now;
+    }
+
+    double phi(long now) {
+        double mean = sum / count;
+        double stdDev = Math.max(minStdDev, Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean)));
+        double y = ((now - lastArrival) - mean) / stdDev;
+        // Logistic approximation of the normal CDF, as used by Akka and Cassandra
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return -Math.log10(Math.max(1 / (1 + 1 / e), Double.MIN_VALUE));
+    }
+
+    long sinceLastHeartbeat(long now) {
+        return now - lastArrival;
+    }
+
+    private void record(long interval) {
+        if (count == WINDOW) {
+            long oldest = intervals[next];
+            sum -= oldest;
+            sumOfSquares -= (double) oldest * oldest;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % WINDOW;
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+}
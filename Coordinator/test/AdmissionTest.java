@@ -0,0 +1,89 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionTest {
+    private static final long MS = 1_000_000; // In System.nanoTime() units
+    private static final int SENDER = 1;
+
+    // Eight messages a second, in bursts of up to four: a token every 125 ms
+    private static Admission limited() {
+        return new Admission(8, 4, 0);
+    }
+
+    @Test
+    void fullBucketAdmitsABurstThenAsksForTheTimeToTheNextToken() {
+        Admission admission = limited();
+        for (int i = 0; i < 4; i++) assertEquals(0, admission.retryAfterMs(SENDER, 1, 0));
+        assertEquals(125, admission.retryAfterMs(SENDER, 1, 0));
+        assertEquals(63, admission.retryAfterMs(SENDER, 1, 62 * MS + MS / 2)); // Half a token in
+        assertEquals(0, admission.retryAfterMs(SENDER, 1, 125 * MS));
+        assertEquals(2, admission.retryResponses.get());
+    }
+
+    @Test
+    void refillStopsAtTheBurst() {
+        Admission admission = limited();
+        assertEquals(0, admission.retryAfterMs(SENDER, 4, 0));
+        long later = 10_000 * MS; // Eighty tokens' worth, of which four are kept
+        for (int i = 0; i < 4; i++) assertEquals(0, admission.retryAfterMs(SENDER, 1, later));
+        assertEquals(125, admission.retryAfterMs(SENDER, 1, later));
+    }
+
+    @Test
+    void batchLargerThanTheBurstWaitsForAFullBucketAndLeavesItInDebt() {
+        Admission admission = limited();
+        assertEquals(0, admission.retryAfterMs(SENDER, 1, 0));
+        assertEquals(125, admission.retryAfterMs(SENDER, 6, 0)); // Needs the whole burst, one token short
+        assertEquals(0, admission.retryAfterMs(SENDER, 6, 125 * MS));
+        assertEquals(375, admission.retryAfterMs(SENDER, 1, 125 * MS)); // Two tokens owed, then one to spend
+    }
+
+    @Test
+    void sendersHaveBucketsOfTheirOwn() {
+        Admission admission = limited();
+        assertEquals(0, admission.retryAfterMs(SENDER, 4, 0));
+        assertEquals(0, admission.retryAfterMs(SENDER + 1, 4, 0));
+        assertEquals(125, admission.retryAfterMs(SENDER, 1, 0));
+        admission.forget(SENDER);
+        assertEquals(0, admission.retryAfterMs(SENDER, 4, 0)); // Starts over on a full bucket
+    }
+
+    @Test
+    void noRateMeansNoLimitAndNoBurstMeansOneSecondsWorth() {
+        Admission unlimited = new Admission(0, 0, 0);
+        assertEquals(0, unlimited.retryAfterMs(SENDER, 1_000_000, 0));
+        Admission oneSecond = new Admission(8, 0, 0);
+        assertEquals(8, oneSecond.senderBurst());
+        assertEquals(0, oneSecond.retryAfterMs(SENDER, 8, 0));
+        assertEquals(125, oneSecond.retryAfterMs(SENDER, 1, 0));
+    }
+
+    @Test
+    void readersWaitWhileTheInFlightCapIsReachedAndAreWokenBelowIt() {
+        Admission admission = new Admission(0, 0, 3);
+        AtomicInteger woken = new AtomicInteger();
+        admission.started(2);
+        assertFalse(admission.saturated());
+        admission.whenBelowCap(woken::incrementAndGet); // Below the cap, so at once
+        assertEquals(1, woken.get());
+
+        admission.started(1);
+        assertTrue(admission.saturated());
+        admission.whenBelowCap(woken::incrementAndGet);
+        admission.whenBelowCap(woken::incrementAndGet);
+        assertEquals(1, woken.get());
+        admission.finished(1);
+        assertFalse(admission.saturated());
+        assertEquals(3, woken.get());
+        assertEquals(2, admission.inFlight());
+
+        admission.started(1);
+        admission.whenBelowCap(woken::incrementAndGet);
+        admission.maxInFlight(0); // Lifting the cap wakes them too
+        assertEquals(4, woken.get());
+        assertFalse(admission.saturated());
+    }
+}
@@ -0,0 +1,93 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatchUpTest {
+    private static final int BACKLOG = 3000;
+    private static final int LIVE = 500;
+    private static final int MESSAGE_BYTES = 1024;
+
+    @TempDir
+    Path directory;
+
+    // Small segments, so the backlog is a mix of zero-copy segments and ones holding another group's messages
+    private static Properties options() {
+        Properties options = new Properties();
+        options.setProperty("segmentBytes", String.valueOf(64 * 1024));
+        options.setProperty("heartbeatIntervalMs", "0");
+        return options;
+    }
+
+    // Sends one message, rotating over "red", "blue" and everyone; returns its sequence if participant 2 receives it
+    private static long send(CoordinatorHarness harness, int i) throws IOException {
+        switch (i % 7) {
+            case 0:
+                harness.gsendBurst(1, "blue", 1, MESSAGE_BYTES);
+                return -1;
+            case 1:
+                harness.gsendBurst(1, "red", 1, MESSAGE_BYTES);
+                return harness.head();
+            default:
+                harness.mbatch(1, 1, MESSAGE_BYTES);
+                return harness.head();
+        }
+    }
+
+    // The reconnect streams the backlog from the log while live messages keep arriving: the participant gets every
+    // message for it once, in order, whichever path it took, and nothing from a group it is not in
+    @Test
+    @Timeout(120)
+    void catchUpAndLiveMessagesMeetWithoutGapsOrDuplicates() throws Exception {
+        try (CoordinatorHarness harness = new CoordinatorHarness(directory, options())) {
+            harness.register(1);
+            CoordinatorHarness.Simulated participant = harness.register(2);
+            harness.subscribe(2, "red");
+            harness.disconnect(2);
+
+            SortedSet<Long> expected = new TreeSet<>();
+            for (int i = 0; i < BACKLOG; i++) {
+                long sequence = send(harness, i);
+                if (sequence > 0) expected.add(sequence);
+            }
+            List<Long> live = new ArrayList<>();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < LIVE; i++) {
+                        long sequence = send(harness, i);
+                        if (sequence > 0) live.add(sequence);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            participant.readDelayMicros = 20; // Keeps the catch-up going while the live messages come in
+            sender.start();
+            harness.reconnect(2);
+            sender.join();
+            assertNull(failure.get());
+            participant.readDelayMicros = 0;
+            expected.addAll(live);
+
+            CoordinatorHarness.await("participant 2 to receive every message for it",
+                    () -> participant.distinct().containsAll(expected));
+            List<Long> afterReconnect = participant.byConnection().get(1);
+            for (int i = 1; i < afterReconnect.size(); i++) {
+                assertTrue(afterReconnect.get(i - 1) < afterReconnect.get(i), "out of order or repeated after " + afterReconnect.get(i - 1));
+            }
+            assertEquals(expected, new TreeSet<>(afterReconnect));
+            assertFalse(participant.groups.contains("blue"));
+        }
+    }
+}
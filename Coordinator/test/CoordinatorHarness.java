@@ -0,0 +1,340 @@
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+// A Coordinator running in the test's JVM, with participants simulated on loopback as the benchmarks' fixture does.
+// Each simulated participant records every message it is delivered, in order and across connections, acknowledges
+// cumulatively whenever its socket is drained, and can be told to stop reading or to stop echoing heartbeats.
+class CoordinatorHarness implements Closeable {
+    static final String HOST = "127.0.0.1";
+    private static final long TIMEOUT_MS = 20_000;
+
+    final Coordinator coordinator;
+    private final Thread running;
+    private final int port;
+    private Socket control;
+    private DataInputStream controlIn;
+    private DataOutputStream controlOut;
+    private long nextRequest = 1;
+    private final Map<Integer, Simulated> participants = new ConcurrentHashMap<>();
+
+    // Quiet defaults, with no ring, no snapshots and two event loops; the options given override them
+    CoordinatorHarness(Path logDir, Properties options) throws IOException {
+        Properties settings = new Properties();
+        settings.setProperty("logDir", logDir.toString());
+        settings.setProperty("eventLoops", "2");
+        settings.setProperty("requestLogSampling", "0");
+        settings.setProperty("statsIntervalMs", "0");
+        settings.setProperty("shmRingBytes", "0");
+        settings.setProperty("snapshotIntervalMs", "0");
+        settings.setProperty("fsyncPolicy", "never");
+        settings.putAll(options);
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        coordinator = new Coordinator(port, 3600, settings);
+        running = new Thread(coordinator::start, "Coordinator");
+        running.setDaemon(true);
+        running.start();
+        openControl();
+    }
+
+    private void openControl() throws IOException {
+        control = connect(port);
+        controlIn = new DataInputStream(new BufferedInputStream(control.getInputStream()));
+        controlOut = new DataOutputStream(new BufferedOutputStream(control.getOutputStream()));
+    }
+
+    // Accepted connections go round-robin over the loops, and participants are served by the loop that took their
+    // registration: a fresh control connection lands on the next loop, so requests still go through while a test
+    // holds the loop of participants registered before
+    synchronized void moveControl() throws IOException {
+        control.close();
+        openControl();
+    }
+
+    // The Coordinator is listening once its event loops exist
+    private static Socket connect(int port) throws IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            try {
+                return new Socket(HOST, port);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                sleep(10);
+            }
+        }
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void await(String what, BooleanSupplier condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out waiting for " + what);
+            sleep(1);
+        }
+    }
+
+    // A participant's delivery end: takes the Coordinator's connections one after another
+    final class Simulated {
+        final int id;
+        final ServerSocket listener;
+        final List<Long> received = Collections.synchronizedList(new ArrayList<>());
+        final List<String> groups = Collections.synchronizedList(new ArrayList<>()); // Of each message received, or null
+        final List<Integer> receivedOn = Collections.synchronizedList(new ArrayList<>()); // Connection each came over
+        volatile boolean reading = true;     // Stops taking frames off the socket while false
+        volatile boolean echoing = true;     // Stops answering heartbeats while false
+        volatile long readDelayMicros = 0;   // Pause after each frame, for a slow reader
+        volatile boolean connected = false;
+        volatile int connections = 0;
+        private volatile Socket socket;
+
+        Simulated(int id) throws IOException {
+            this.id = id;
+            this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this::receive, "Participant-" + id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void receive() {
+            while (!listener.isClosed()) {
+                try (Socket accepted = listener.accept()) {
+                    socket = accepted;
+                    connected = true;
+                    int connection = ++connections;
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(accepted.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(accepted.getOutputStream()));
+                    long receivedUpTo = 0;
+                    long ackedUpTo = 0;
+                    while (true) {
+                        while (!reading) sleep(1);
+                        if (readDelayMicros > 0) LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(readDelayMicros));
+                        Frame frame = Frame.readFrom(in);
+                        List<Frame> messages = frame.opcode == Frame.MESSAGE_BATCH ? frame.frames() : Collections.singletonList(frame);
+                        for (Frame message : messages) {
+                            if (message.opcode == Frame.MESSAGE || message.opcode == Frame.GROUP_MESSAGE) {
+                                synchronized (received) {
+                                    received.add(message.sequence);
+                                    receivedOn.add(connection);
+                                    groups.add(message.opcode == Frame.GROUP_MESSAGE ? group(message) : null);
+                                }
+                                receivedUpTo = Math.max(receivedUpTo, message.sequence);
+                            }
+                        }
+                        if (frame.opcode == Frame.HEARTBEAT && echoing) {
+                            frame.writeTo(out);
+                            out.flush();
+                        }
+                        if (in.available() == 0 && receivedUpTo > ackedUpTo) {
+                            ackedUpTo = receivedUpTo;
+                            new Frame(Frame.ACK, id, ackedUpTo, new byte[0]).writeTo(out);
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Closed by the Coordinator, or at the end of the test
+                } finally {
+                    connected = false;
+                }
+            }
+        }
+
+        private String group(Frame message) {
+            int length = message.payload[8] & 0xff; // After the timestamp
+            return new String(message.payload, 9, length, StandardCharsets.UTF_8);
+        }
+
+        byte[] address() {
+            return Frame.addressPayload(HOST, listener.getLocalPort(), (byte) 0);
+        }
+
+        // What each connection delivered, in order
+        List<List<Long>> byConnection() {
+            List<List<Long>> connections = new ArrayList<>();
+            synchronized (received) {
+                for (int i = 0; i < received.size(); i++) {
+                    while (connections.size() < receivedOn.get(i)) connections.add(new ArrayList<>());
+                    connections.get(receivedOn.get(i) - 1).add(received.get(i));
+                }
+            }
+            return connections;
+        }
+
+        // Sequences received so far, without repeats
+        SortedSet<Long> distinct() {
+            synchronized (received) {
+                return new TreeSet<>(received);
+            }
+        }
+
+        boolean hasAll(long from, long to) {
+            SortedSet<Long> distinct = distinct();
+            for (long sequence = from; sequence <= to; sequence++) {
+                if (!distinct.contains(sequence)) return false;
+            }
+            return true;
+        }
+
+        void awaitAll(long from, long to) {
+            await("participant " + id + " to receive " + from + ".." + to, () -> hasAll(from, to));
+        }
+    }
+
+    synchronized String request(byte opcode, int participantID, byte[] payload) throws IOException {
+        Frame request = new Frame(opcode, participantID, nextRequest++, payload);
+        request.writeTo(controlOut);
+        controlOut.flush();
+        Frame response;
+        do {
+            response = Frame.readFrom(controlIn);
+        } while (response.opcode != Frame.RESPONSE || response.sequence != request.sequence);
+        return response.text();
+    }
+
+    private static void expect(String expected, String response) throws IOException {
+        if (!response.startsWith(expected)) throw new IOException("Expected " + expected + ", got " + response);
+    }
+
+    Simulated participant(int participantID) {
+        return participants.get(participantID);
+    }
+
+    Simulated register(int participantID) throws IOException {
+        Simulated participant = new Simulated(participantID);
+        participants.put(participantID, participant);
+        expect("Participant registered", request(Frame.REGISTER, participantID, participant.address()));
+        await("participant " + participantID + " to connect", () -> participant.connected);
+        return participant;
+    }
+
+    void reconnect(int participantID) throws IOException {
+        Simulated participant = participant(participantID);
+        int connections = participant.connections;
+        expect("Participant reconnected", request(Frame.RECONNECT, participantID, participant.address()));
+        await("participant " + participantID + " to reconnect", () -> participant.connections > connections);
+    }
+
+    void disconnect(int participantID) throws IOException {
+        expect("Participant disconnected", request(Frame.DISCONNECT, participantID, new byte[0]));
+        Simulated participant = participant(participantID);
+        await("participant " + participantID + " to be disconnected", () -> !participant.connected);
+    }
+
+    void subscribe(int participantID, String group) throws IOException {
+        expect("Subscribed to " + group, request(Frame.SUBSCRIBE, participantID, group.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    void msend(int senderID, String message) throws IOException {
+        expect("Message Acknowledged", request(Frame.MSEND, senderID, message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    void gsend(int senderID, String group, String message) throws IOException {
+        byte[] payload = Frame.groupPayload(group.getBytes(StandardCharsets.UTF_8), message.getBytes(StandardCharsets.UTF_8));
+        expect("Message Acknowledged", request(Frame.GSEND, senderID, payload));
+    }
+
+    // Pipelined on the control connection, so the messages reach the fan-out as fast as they can be appended
+    synchronized void gsendBurst(int senderID, String group, int messages, int messageBytes) throws IOException {
+        byte[] payload = Frame.groupPayload(group.getBytes(StandardCharsets.UTF_8), new byte[messageBytes]);
+        long first = nextRequest;
+        for (int i = 0; i < messages; i++) new Frame(Frame.GSEND, senderID, nextRequest++, payload).writeTo(controlOut);
+        controlOut.flush();
+        for (long answered = first; answered < nextRequest; ) {
+            Frame response = Frame.readFrom(controlIn);
+            if (response.opcode != Frame.RESPONSE || response.sequence < first) continue;
+            expect("Message Acknowledged", response.text());
+            answered++;
+        }
+    }
+
+    void mbatch(int senderID, int messages, int messageBytes) throws IOException {
+        Frame batch = Frame.batch(senderID, 0, Collections.nCopies(messages, new byte[messageBytes]));
+        expect("Batch Acknowledged", request(Frame.MSEND_BATCH, senderID, batch.payload));
+    }
+
+    long head() {
+        return messageLog().head();
+    }
+
+    MessageLog messageLog() {
+        return (MessageLog) field(coordinator, "messageLog");
+    }
+
+    // The Coordinator's DeliveryChannel for an online participant, for tests that step it on its own loop
+    Object delivery(int participantID) {
+        Map<?, ?> registry = (Map<?, ?>) field(coordinator, "participants");
+        Object registration = registry.get(participantID);
+        return registration == null ? null : field(registration, "delivery");
+    }
+
+    // Runs the task on the event loop that owns the delivery channel, behind whatever that loop already has queued
+    static void onLoopOf(Object delivery, Runnable task) {
+        Object loop = field(delivery, "loop");
+        try {
+            Method execute = loop.getClass().getDeclaredMethod("execute", Runnable.class);
+            execute.setAccessible(true);
+            execute.invoke(loop, task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object call(Object target, String name) {
+        try {
+            Method method = target.getClass().getDeclaredMethod(name);
+            method.setAccessible(true);
+            return method.invoke(target);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object field(Object target, String name) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Stops the event loops, after which the Coordinator closes its log
+    @Override
+    public void close() throws IOException {
+        for (Object loop : (Object[]) field(coordinator, "eventLoops")) {
+            if (loop != null) ((Thread) field(loop, "thread")).interrupt();
+        }
+        try {
+            running.join(TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Simulated participant : participants.values()) {
+            participant.listener.close();
+            Socket socket = participant.socket;
+            if (socket != null) socket.close();
+        }
+        control.close();
+    }
+}
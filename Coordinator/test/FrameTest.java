@@ -0,0 +1,39 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameTest {
+    private static Frame batch(ByteBuffer payload) {
+        return new Frame(Frame.MSEND_BATCH, 1, 1, Arrays.copyOf(payload.array(), payload.position()));
+    }
+
+    @Test
+    void batchRoundTrips() throws IOException {
+        List<byte[]> messages = Arrays.asList("one".getBytes(StandardCharsets.UTF_8), new byte[0], "three".getBytes(StandardCharsets.UTF_8));
+        List<byte[]> decoded = Frame.batch(1, 1, messages).batchMessages();
+        assertEquals(messages.size(), decoded.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertArrayEquals(messages.get(i), decoded.get(i));
+        }
+    }
+
+    // A sender controls every length in a batch; none may size an allocation beyond the payload it arrived in
+    @Test
+    void malformedBatchIsRejectedBeforeAnythingIsAllocated() {
+        ByteBuffer huge = ByteBuffer.allocate(64).putInt(1).putInt(Integer.MAX_VALUE).put(new byte[8]);
+        ByteBuffer negative = ByteBuffer.allocate(64).putInt(1).putInt(-1);
+        ByteBuffer pastTheEnd = ByteBuffer.allocate(64).putInt(2).putInt(3).put(new byte[3]).putInt(4).put(new byte[3]);
+        ByteBuffer missingLength = ByteBuffer.allocate(64).putInt(2).putInt(0);
+        ByteBuffer tooMany = ByteBuffer.allocate(64).putInt(Integer.MAX_VALUE);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        for (ByteBuffer payload : Arrays.asList(huge, negative, pastTheEnd, missingLength, tooMany, empty)) {
+            assertThrows(IOException.class, () -> batch(payload).batchMessages());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeartbeatTest {
+    private static final long INTERVAL_MS = 50;
+
+    @TempDir
+    Path directory;
+
+    // A participant that stops echoing heartbeats is sent offline once phi passes the threshold, while one that keeps
+    // echoing stays online; the silent one catches up on what it missed when it reconnects
+    @Test
+    @Timeout(60)
+    void silentParticipantGoesOfflineAndCatchesUpOnReconnect() throws IOException {
+        Properties options = new Properties();
+        options.setProperty("heartbeatIntervalMs", String.valueOf(INTERVAL_MS));
+        options.setProperty("phiThreshold", "8");
+        try (CoordinatorHarness harness = new CoordinatorHarness(directory, options)) {
+            CoordinatorHarness.Simulated echoing = harness.register(1);
+            CoordinatorHarness.Simulated silent = harness.register(2);
+            CoordinatorHarness.sleep(10 * INTERVAL_MS); // Some heartbeats to judge by
+            silent.echoing = false;
+
+            CoordinatorHarness.await("the silent participant to go offline", () -> !silent.connected && harness.delivery(2) == null);
+            CoordinatorHarness.sleep(10 * INTERVAL_MS);
+            assertTrue(echoing.connected);
+            assertNotNull(harness.delivery(1));
+
+            harness.msend(1, "while offline");
+            silent.echoing = true;
+            harness.reconnect(2);
+            silent.awaitAll(1, harness.head());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+    @Test
+    void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long value = 0; value < 64; value++) histogram.record(value);
+        assertEquals(31, histogram.percentile(50));
+        assertEquals(63, histogram.max());
+    }
+
+    @Test
+    void reportedValuesAreWithinAFewPercentAbove() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long value = random.nextLong() >>> (1 + random.nextInt(63)); // Non-negative, of every magnitude
+            Histogram histogram = new Histogram();
+            histogram.record(value);
+            long reported = histogram.max();
+            assertTrue(reported >= value, value + " reported as " + reported);
+            assertTrue(reported - value <= value / 32, value + " reported as " + reported);
+        }
+    }
+
+    @Test
+    void percentilesOfAUniformSpread() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 1_000_000; value++) histogram.record(value);
+        assertEquals(1_000_000, histogram.count());
+        assertEquals(500_000, histogram.percentile(50), 500_000 / 32.0);
+        assertEquals(990_000, histogram.percentile(99), 990_000 / 32.0);
+        assertEquals(999_000, histogram.percentile(99.9), 999_000 / 32.0);
+    }
+
+    @Test
+    void largestValues() {
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-1); // Counted as 0
+        assertEquals(Long.MAX_VALUE, histogram.max());
+        assertEquals(0, histogram.percentile(50));
+    }
+}
@@ -0,0 +1,257 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A log left open stands for a Coordinator that died without closing it
+class MessageLogTest {
+    @TempDir
+    Path directory;
+
+    private MessageLog open() throws IOException {
+        return open(1 << 20);
+    }
+
+    // A segmentBytes of 1 gives every message a segment of its own
+    private MessageLog open(long segmentBytes) throws IOException {
+        MessageLog log = new MessageLog(directory, 3_600_000, segmentBytes, 3_600_000, MessageLog.FsyncPolicy.NEVER, 1000, 0);
+        log.open();
+        return log;
+    }
+
+    private static long append(MessageLog log, String message) throws IOException {
+        return log.appendMessage(System.currentTimeMillis(), 1, null, message.getBytes(StandardCharsets.UTF_8)).sequence;
+    }
+
+    private static long append(MessageLog log, String group, String message) throws IOException {
+        return log.appendMessage(System.currentTimeMillis(), 1, group.getBytes(StandardCharsets.UTF_8), message.getBytes(StandardCharsets.UTF_8)).sequence;
+    }
+
+    private static List<String> messages(MessageLog log) throws IOException {
+        return messages(log, Collections.emptyMap());
+    }
+
+    private static List<String> messages(MessageLog log, Map<String, Long> groups) throws IOException {
+        return texts(log.readAfter(0, System.currentTimeMillis(), groups));
+    }
+
+    private static List<String> texts(List<MessageLog.Message> messages) {
+        return messages.stream().map(message -> {
+            try {
+                Frame frame = Frame.decode(message.frame);
+                int offset = frame.opcode == Frame.GROUP_MESSAGE ? 9 + frame.payload[8] : 8; // After the timestamp and group
+                return new String(frame.payload, offset, frame.payload.length - offset, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }).collect(Collectors.toList());
+    }
+
+    private Path segment() {
+        return segment(0);
+    }
+
+    private Path segment(long id) {
+        return directory.resolve(String.format("%020d.log", id));
+    }
+
+    @Test
+    void truncatesATornLastFrame() throws IOException {
+        MessageLog crashed = open();
+        append(crashed, "one");
+        append(crashed, "two");
+        long intactLength = crashed.retainedBytes();
+        append(crashed, "three");
+        try (FileChannel file = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 3); // The last write reached the disk only in part
+        }
+
+        try (MessageLog log = open()) {
+            assertEquals(Arrays.asList("one", "two"), messages(log));
+            assertEquals(intactLength, Files.size(segment()));
+            // Participants may hold the lost "three" as 3: numbering resumes past every sequence handed out
+            assertEquals(MessageLog.SEQUENCE_RESERVATION + 1, append(log, "three again"));
+            assertEquals(Arrays.asList("one", "two", "three again"), messages(log));
+        }
+    }
+
+    @Test
+    void truncatesAtAFrameThatFailsItsChecksum() throws IOException {
+        long intactLength;
+        try (MessageLog log = open()) {
+            append(log, "one");
+            intactLength = log.retainedBytes();
+            append(log, "two");
+            append(log, "three");
+        }
+        try (FileChannel file = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+            // "two" becomes "Two": the frame is whole but no longer matches its checksum
+            file.write(ByteBuffer.wrap(new byte[] {'T'}), intactLength + Frame.HEADER_LENGTH + 8);
+        }
+
+        try (MessageLog log = open()) { // "three" is intact, but nothing after a corrupt frame is trusted
+            assertEquals(Collections.singletonList("one"), messages(log));
+            assertEquals(intactLength, Files.size(segment()));
+        }
+    }
+
+    @Test
+    void neverReusesASequenceLostInACrash() throws IOException {
+        append(open(), "one");
+        Files.write(segment(), new byte[0]); // The page cache held all of it
+        try (MessageLog log = open()) {
+            assertTrue(messages(log).isEmpty());
+            assertEquals(MessageLog.SEQUENCE_RESERVATION + 1, append(log, "two"));
+        }
+        try (MessageLog log = open()) { // A clean close hands back the unused sequences
+            assertEquals(Collections.singletonList("two"), messages(log));
+            assertEquals(MessageLog.SEQUENCE_RESERVATION + 2, append(log, "three"));
+        }
+    }
+
+    @Test
+    void keepsCursorsAcrossRestarts() throws IOException {
+        try (MessageLog log = open()) {
+            append(log, "one");
+            log.saveCursor(7, 1);
+            log.saveCursor(8, 1);
+            log.removeCursor(8); // Deregistered
+        }
+        try (MessageLog log = open()) {
+            assertEquals(Collections.singletonMap(7, 1L), log.cursors());
+            assertNull(log.cursor(8));
+            assertEquals(Collections.emptyList(), log.readAfter(log.cursor(7), System.currentTimeMillis(), Collections.emptyMap()));
+        }
+    }
+
+    @Test
+    void readsGroupMessagesOnlyForGroupsSubscribedBeforeThem() throws IOException {
+        try (MessageLog log = open()) {
+            append(log, "red", "red before");
+            log.subscribe(2, "red");
+            append(log, "red", "red after");
+            append(log, "blue", "blue");
+            append(log, "everyone");
+            assertEquals(Arrays.asList("red after", "everyone"), messages(log, log.subscriptions(2)));
+            assertEquals(Collections.singletonList("everyone"), messages(log, log.subscriptions(3)));
+        }
+    }
+
+    @Test
+    void catchUpSendsWholeSegmentsZeroCopyOnlyWhenTheParticipantReceivesAllOfThem() throws IOException {
+        try (MessageLog log = open(1)) {
+            log.subscribe(2, "red"); // Before anything was sent, so 2 receives every message
+            append(log, "one");
+            append(log, "red", "two");
+            append(log, "three");
+            append(log, "four");
+
+            Map<String, Long> everything = log.subscriptions(2);
+            Deque<MessageLog.Span> plan = log.catchUpPlan(1, System.currentTimeMillis(), everything);
+            assertEquals(3, plan.size()); // One per segment after the first
+            for (MessageLog.Span span : plan) assertTrue(span.zeroCopy);
+            assertEquals(Arrays.asList("two", "three", "four"), read(log, plan, 1, everything));
+
+            Map<String, Long> nothing = Collections.emptyMap();
+            plan = log.catchUpPlan(1, System.currentTimeMillis(), nothing);
+            assertFalse(plan.getFirst().zeroCopy); // Filtered as it is read
+            assertEquals(Arrays.asList("three", "four"), read(log, plan, 1, nothing));
+        }
+    }
+
+    // Reads the plan as a catch-up would, checking that a zero-copy span holds exactly the messages it claims
+    private static List<String> read(MessageLog log, Deque<MessageLog.Span> plan, long after, Map<String, Long> groups) throws IOException {
+        List<MessageLog.Message> messages = new ArrayList<>();
+        long sent = after;
+        for (MessageLog.Span span : plan) {
+            List<MessageLog.Message> inSpan = new ArrayList<>();
+            while (span.position < span.end) inSpan.addAll(log.readSpan(span, after, System.currentTimeMillis(), groups));
+            if (span.zeroCopy) assertEquals(span.messages, inSpan.size());
+            for (MessageLog.Message message : inSpan) assertTrue(message.sequence > sent);
+            if (!inSpan.isEmpty()) sent = inSpan.get(inSpan.size() - 1).sequence;
+            assertTrue(sent <= span.lastSequence);
+            messages.addAll(inSpan);
+        }
+        return texts(messages);
+    }
+
+    @Test
+    void keepsSubscriptionsOfRegisteredParticipantsAcrossRestarts() throws IOException {
+        try (MessageLog log = open()) {
+            log.saveCursor(2, 0);
+            assertTrue(log.subscribe(2, "red"));
+            assertFalse(log.subscribe(2, "red")); // Already subscribed
+            log.subscribe(2, "blue");
+            log.unsubscribe(2, "blue");
+            log.subscribe(3, "red"); // Never registered
+            log.saveSubscriptions(); // As the Coordinator does after each change
+        }
+        try (MessageLog log = open()) {
+            assertEquals(Collections.singletonMap(2, new HashSet<>(Collections.singletonList("red"))), log.subscriptions());
+        }
+    }
+
+    @Test
+    void dropsATornCursorRecord() throws IOException {
+        try (MessageLog log = open()) {
+            append(log, "one");
+            log.saveCursor(7, 1);
+        }
+        Path cursors = directory.resolve("cursors.log");
+        Files.write(cursors, new byte[] {1, 0, 0}, StandardOpenOption.APPEND); // A record cut off after three bytes
+
+        try (MessageLog log = open()) {
+            assertEquals(Collections.singletonMap(7, 1L), log.cursors());
+            log.saveCursor(8, 1);
+        }
+        try (MessageLog log = open()) {
+            assertEquals(1L, log.cursor(8)); // Written after the torn bytes were cut off, so still readable
+            assertEquals(1L, log.cursor(7));
+        }
+    }
+
+    @Test
+    void restartFromASnapshotKeepsCursorsAndHeadAndSkipsCompactedSegments() throws IOException {
+        try (MessageLog log = open(1)) {
+            for (String message : Arrays.asList("one", "two", "three", "four", "five")) append(log, message);
+            log.saveCursor(7, 3);
+            log.saveCursor(8, 4);
+            log.writeSnapshot(Collections.singletonMap(7, new MessageLog.Endpoint("127.0.0.1", 5000, false)));
+            // Everyone has acknowledged 3, so the segments holding 1 to 3 go, though the snapshot still summarizes them
+            assertEquals(3, log.compact(3, Integer.MAX_VALUE).segments);
+        }
+        for (long id = 0; id < 3; id++) assertFalse(Files.exists(segment(id)));
+
+        try (MessageLog log = open(1)) {
+            assertEquals(2, log.recovery().segments);
+            assertEquals(2, log.recovery().fromSnapshot);
+            assertEquals(0, log.recovery().scannedBytes);
+            assertEquals(5, log.head());
+            Map<Integer, Long> cursors = new HashMap<>();
+            cursors.put(7, 3L);
+            cursors.put(8, 4L);
+            assertEquals(cursors, log.cursors());
+            assertEquals(Collections.singleton(7), log.endpoints().keySet());
+            assertEquals(Arrays.asList("four", "five"), messages(log));
+            assertEquals(6, append(log, "six"));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundQueueTest {
+    private static final int LIMIT = 4;
+    private static final int MESSAGE_BYTES = 256 * 1024;
+
+    @TempDir
+    Path directory;
+
+    // Within one connection a participant gets an unbroken run: its catch-up, then live messages
+    static void assertUnbroken(CoordinatorHarness.Simulated participant) {
+        List<List<Long>> connections = participant.byConnection();
+        for (int i = 0; i < connections.size(); i++) {
+            List<Long> run = connections.get(i);
+            for (int j = 1; j < run.size(); j++) {
+                assertEquals(run.get(j - 1) + 1, run.get(j), "connection " + (i + 1) + " skipped after " + run.get(j - 1));
+            }
+        }
+    }
+
+    private static int queued(Object delivery) {
+        return ((AtomicInteger) CoordinatorHarness.field(delivery, "queued")).get();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(20, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The overflowing message N sends the participant offline on its loop, which may first finish draining the queue.
+    // Here the loop drains it and N + 1 is offered before goOffline runs: N + 1 must wait for the reconnect too, or its
+    // ack would carry the saved cursor past N, which would then never be delivered.
+    @Test
+    @Timeout(60)
+    void overflowedMessageIsReplayedAfterReconnectEvenIfTheQueueDrainsFirst() throws IOException {
+        Properties options = new Properties();
+        options.setProperty("outboundQueueLimit", String.valueOf(LIMIT));
+        options.setProperty("heartbeatIntervalMs", "0");
+        try (CoordinatorHarness harness = new CoordinatorHarness(directory, options)) {
+            harness.register(1); // The sender, outside the group
+            CoordinatorHarness.Simulated slow = harness.register(2);
+            harness.subscribe(2, "slow");
+            Object delivery = harness.delivery(2);
+            harness.moveControl(); // Off the slow participant's loop, which the test is about to hold
+
+            slow.reading = false;
+            while (queued(delivery) == 0) { // Until the socket buffers are full and messages stay queued
+                harness.gsendBurst(1, "slow", 1, MESSAGE_BYTES);
+                CoordinatorHarness.sleep(20);
+            }
+            CountDownLatch loopHeld = new CountDownLatch(1);
+            CountDownLatch overflowed = new CountDownLatch(1);
+            CountDownLatch drained = new CountDownLatch(1);
+            CountDownLatch nextOffered = new CountDownLatch(1);
+            long[] next = new long[1];
+            CoordinatorHarness.onLoopOf(delivery, () -> { // Ahead of the goOffline that N's overflow queues
+                loopHeld.countDown();
+                await(overflowed);
+                slow.reading = true;
+                while (queued(delivery) > 0) {
+                    CoordinatorHarness.call(delivery, "flush");
+                    CoordinatorHarness.sleep(1);
+                }
+                drained.countDown();
+                await(nextOffered);
+                long deadline = System.currentTimeMillis() + 500; // Time to write N + 1 and read its ack, if it was queued
+                while (System.currentTimeMillis() < deadline && (long) CoordinatorHarness.field(delivery, "ackedUpTo") < next[0]) {
+                    CoordinatorHarness.call(delivery, "flush");
+                    CoordinatorHarness.call(delivery, "readAcks");
+                    CoordinatorHarness.sleep(1);
+                }
+            });
+            await(loopHeld);
+            while (queued(delivery) < LIMIT) harness.gsendBurst(1, "slow", 1, MESSAGE_BYTES);
+            harness.gsendBurst(1, "slow", 1, MESSAGE_BYTES); // N, which overflows
+            long lost = harness.head();
+            overflowed.countDown();
+            await(drained);
+            harness.gsendBurst(1, "slow", 1, MESSAGE_BYTES); // N + 1, with room in the queue again
+            next[0] = harness.head();
+            nextOffered.countDown();
+
+            CoordinatorHarness.await("the overflowed participant to go offline", () -> !slow.connected);
+            assertFalse(slow.distinct().contains(lost + 1), "N + 1 was delivered over the overflowed connection");
+            harness.reconnect(2);
+            slow.awaitAll(1, harness.head());
+            assertUnbroken(slow);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PhiAccrualDetectorTest {
+    private static final long INTERVAL = 100;
+
+    // Heartbeats at the given intervals, starting at time 0; returns the time of the last
+    private static long feed(PhiAccrualDetector detector, long... intervals) {
+        long now = 0;
+        for (int i = 0; i < 200; i++) { // Twice round the window, so only these intervals count
+            now += intervals[i % intervals.length];
+            detector.heartbeat(now);
+        }
+        return now;
+    }
+
+    @Test
+    void phiGrowsWithTheSilenceAndCrossesTheThresholdOnlyWellPastTheUsualInterval() {
+        PhiAccrualDetector detector = new PhiAccrualDetector(INTERVAL, 0);
+        long last = feed(detector, INTERVAL);
+        assertEquals(0, detector.phi(last), 0.05);
+        assertEquals(-Math.log10(0.5), detector.phi(last + INTERVAL), 0.01); // As likely late as early
+        double previous = 0;
+        for (long silence = 0; silence <= 10 * INTERVAL; silence += INTERVAL / 10) {
+            double phi = detector.phi(last + silence);
+            assertTrue(phi >= previous, "phi fell at " + silence + " ms");
+            previous = phi;
+        }
+        assertTrue(detector.phi(last + 2 * INTERVAL) < 8);
+        assertTrue(detector.phi(last + 5 * INTERVAL) > 8);
+        assertEquals(5 * INTERVAL, detector.sinceLastHeartbeat(last + 5 * INTERVAL));
+    }
+
+    @Test
+    void anIrregularLinkIsGivenMoreSlackThanARegularOne() {
+        PhiAccrualDetector regular = new PhiAccrualDetector(INTERVAL, 0);
+        long regularLast = feed(regular, 2 * INTERVAL);
+        PhiAccrualDetector irregular = new PhiAccrualDetector(INTERVAL, 0);
+        long irregularLast = feed(irregular, INTERVAL / 5, 19 * INTERVAL / 5); // Same mean, wide spread
+        long silence = 7 * INTERVAL;
+        assertTrue(regular.phi(regularLast + silence) > 8);
+        assertTrue(irregular.phi(irregularLast + silence) < 8);
+    }
+
+    @Test
+    void heartbeatResetsTheSilence() {
+        PhiAccrualDetector detector = new PhiAccrualDetector(INTERVAL, 0);
+        assertTrue(detector.phi(10 * INTERVAL) > 8); // Judged against the expected interval before any heartbeat
+        detector.heartbeat(10 * INTERVAL);
+        assertTrue(detector.phi(10 * INTERVAL) < 1);
+        assertEquals(0, detector.sinceLastHeartbeat(10 * INTERVAL));
+    }
+}
@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedRingTest {
+    private static final int MESSAGE_BYTES = 1 << 20; // About 30 records fill the smallest ring
+    private static final int[] EVERYONE = new int[0];
+
+    @TempDir
+    Path directory;
+
+    private static ByteBuffer message(long sequence) {
+        byte[] message = new byte[MESSAGE_BYTES];
+        ByteBuffer.wrap(message).putLong(sequence);
+        return Frame.message(1, sequence, 0, message, 0, message.length);
+    }
+
+    private static long sequenceIn(Frame frame) {
+        return ByteBuffer.wrap(frame.payload, 8, 8).getLong(); // After the timestamp
+    }
+
+    @Test
+    void readerKeepingUpFollowsTheRingAcrossWraps() throws IOException {
+        try (SharedRing ring = SharedRing.create(directory.resolve("ring"), 0)) {
+            SharedRing.Reader reader = SharedRing.open(ring.path()).reader(5, ring.published());
+            List<Long> received = new ArrayList<>();
+            for (long sequence = 1; sequence <= 100; sequence++) { // Over three times round
+                ring.write(message(sequence), EVERYONE);
+                if (sequence % 10 == 0) reader.poll(Integer.MAX_VALUE, frame -> received.add(checkedSequence(frame)));
+            }
+            assertTrue(ring.published() > 3L * SharedRing.MIN_CAPACITY);
+            assertFalse(reader.lapped());
+            assertEquals(100, received.size());
+            for (int i = 0; i < received.size(); i++) {
+                assertEquals(i + 1, received.get(i));
+            }
+        }
+    }
+
+    @Test
+    void readerOnlyTakesRecordsAddressedToIt() throws IOException {
+        try (SharedRing ring = SharedRing.create(directory.resolve("ring"), 0)) {
+            SharedRing.Reader reader = SharedRing.open(ring.path()).reader(5, ring.published());
+            ring.write(message(1), new int[] {4, 5});
+            ring.write(message(2), new int[] {4});
+            ring.write(message(3), EVERYONE);
+            List<Long> received = new ArrayList<>();
+            assertEquals(3, reader.poll(Integer.MAX_VALUE, frame -> received.add(checkedSequence(frame))));
+            assertEquals(List.of(1L, 3L), received);
+        }
+    }
+
+    @Test
+    void lappedReaderStopsWithoutDeliveringOverwrittenRecords() throws IOException {
+        try (SharedRing ring = SharedRing.create(directory.resolve("ring"), 0)) {
+            SharedRing.Reader reader = SharedRing.open(ring.path()).reader(5, ring.published());
+            for (long sequence = 1; sequence <= 40; sequence++) { // More than a whole ring past the reader
+                ring.write(message(sequence), EVERYONE);
+            }
+            List<Frame> received = new ArrayList<>();
+            assertEquals(0, reader.poll(Integer.MAX_VALUE, received::add));
+            assertTrue(reader.lapped());
+            assertTrue(received.isEmpty());
+        }
+    }
+
+    @Test
+    void closingTheWriterRemovesTheFile() throws IOException {
+        Path path = directory.resolve("ring");
+        SharedRing.create(path, 0).close();
+        assertFalse(Files.exists(path));
+    }
+
+    // The frame's own sequence, which the message also carries
+    private static long checkedSequence(Frame frame) {
+        assertEquals(frame.sequence, sequenceIn(frame));
+        return frame.sequence;
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpillTest {
+    private static final long BUDGET = 1 << 20;
+    private static final int MESSAGE_BYTES = 64 * 1024;
+    private static final int MESSAGES = 256; // Sixteen times the budget, far more than the socket buffers take
+
+    @TempDir
+    Path directory;
+
+    // Only the stalled participant queues anything, so its spills alone must keep the total within the budget
+    @Test
+    @Timeout(120)
+    void stalledParticipantSpillsWithinTheBudgetAndCatchesUpFromTheLog() throws IOException {
+        Properties options = new Properties();
+        options.setProperty("memoryBudgetBytes", String.valueOf(BUDGET));
+        options.setProperty("outboundQueueLimit", String.valueOf(1 << 20)); // The budget is what has to stop it
+        options.setProperty("heartbeatIntervalMs", "0");
+        try (CoordinatorHarness harness = new CoordinatorHarness(directory, options)) {
+            harness.register(1);
+            CoordinatorHarness.Simulated stalled = harness.register(2);
+            harness.subscribe(2, "stalled");
+            long first = harness.head() + 1;
+
+            stalled.reading = false;
+            long mostBuffered = 0;
+            for (int sent = 0; sent < MESSAGES; sent += 8) {
+                harness.gsendBurst(1, "stalled", 8, MESSAGE_BYTES);
+                mostBuffered = Math.max(mostBuffered, harness.coordinator.getBufferedBytes());
+            }
+            assertTrue(mostBuffered <= BUDGET, mostBuffered + " bytes buffered");
+            assertTrue(harness.coordinator.getSpilledBytes() > 0);
+            assertTrue(stalled.connected); // Spilled, not sent offline
+
+            stalled.reading = true;
+            stalled.awaitAll(first, harness.head());
+            OutboundQueueTest.assertUnbroken(stalled);
+            Object delivery = harness.delivery(2);
+            CoordinatorHarness.await("the buffered bytes to be released", () -> harness.coordinator.getBufferedBytes() == 0
+                    && ((AtomicLong) CoordinatorHarness.field(delivery, "queuedBytes")).get() == 0
+                    && ((AtomicInteger) CoordinatorHarness.field(delivery, "queued")).get() == 0);
+        }
+    }
+}
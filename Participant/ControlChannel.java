@@ -0,0 +1,179 @@
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One long-lived connection to the Coordinator. Requests are pipelined and matched to their
+// responses by the sequence number the Coordinator echoes back. A dropped link fails whatever
+// is in flight and is re-established by the next request. A request with no response within
+// RESPONSE_TIMEOUT_MS fails with a TimeoutException; a response arriving after that is dropped.
+// send() only queues the request: a writer thread connects and writes, flushing once per burst,
+// so a caller never waits on the socket or on a reconnect.
+class ControlChannel {
+    private static final int CONNECT_ATTEMPTS = 3;
+    private static final long RESPONSE_TIMEOUT_MS = 5000;
+
+    private static final class Request {
+        final Frame frame;
+        final CompletableFuture<String> response;
+
+        Request(Frame frame, CompletableFuture<String> response) {
+            this.frame = frame;
+            this.response = response;
+        }
+    }
+
+    private final String coordinatorIP;
+    private final int coordinatorPort;
+    private final Map<Long, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequest = new AtomicLong(1);
+    private final BlockingQueue<Request> queued = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private Socket socket; // Guarded by this; set only by the writer
+    private DataOutputStream output;
+    private volatile boolean closed = false;
+
+    ControlChannel(String coordinatorIP, int coordinatorPort) {
+        this.coordinatorIP = coordinatorIP;
+        this.coordinatorPort = coordinatorPort;
+        writer = new Thread(this::writeRequests, "Thread-W");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    CompletableFuture<String> send(byte opcode, int participantID, byte[] payload) {
+        long requestID = nextRequest.getAndIncrement();
+        CompletableFuture<String> response = new CompletableFuture<>();
+        inFlight.put(requestID, response);
+        // Whether answered, failed or timed out, the request stops being tracked
+        response.orTimeout(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((ignored, e) -> inFlight.remove(requestID, response));
+        queued.add(new Request(new Frame(opcode, participantID, requestID, payload), response));
+        if (closed) failQueued(); // Closed meanwhile; the writer may already be gone
+        return response;
+    }
+
+    // Writer thread: takes the next request, connecting first if need be, then writes everything queued behind it
+    // before a single flush. Requests that timed out while queued are not sent.
+    private void writeRequests() {
+        while (!closed) {
+            Request request;
+            try {
+                request = queued.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (request.response.isDone()) continue;
+            Socket current = null;
+            try {
+                current = connect();
+                DataOutputStream out;
+                synchronized (this) {
+                    if (socket != current) throw new IOException("Connection to coordinator lost");
+                    out = output;
+                }
+                do {
+                    if (!request.response.isDone()) request.frame.writeTo(out);
+                } while ((request = queued.poll()) != null);
+                out.flush();
+            } catch (IOException e) {
+                if (request != null) request.response.completeExceptionally(e);
+                if (current != null) connectionLost(current, e);
+            }
+        }
+        failQueued();
+    }
+
+    // Reuses the open connection, or reconnects with a short backoff
+    private Socket connect() throws IOException {
+        synchronized (this) {
+            if (closed) throw new IOException("Control channel closed");
+            if (socket != null) return socket;
+        }
+        IOException failure = null;
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS && !closed; attempt++) {
+            Socket candidate = new Socket();
+            try {
+                candidate.connect(new InetSocketAddress(coordinatorIP, coordinatorPort), 5000);
+                candidate.setTcpNoDelay(true);
+                return adopt(candidate);
+            } catch (IOException e) {
+                failure = e;
+                candidate.close();
+                try {
+                    Thread.sleep(100L << attempt);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+        throw failure != null ? failure : new IOException("Control channel closed");
+    }
+
+    private Socket adopt(Socket candidate) throws IOException {
+        DataOutputStream candidateOutput = new DataOutputStream(new BufferedOutputStream(candidate.getOutputStream()));
+        DataInputStream input = new DataInputStream(new BufferedInputStream(candidate.getInputStream()));
+        synchronized (this) {
+            if (closed) throw new IOException("Control channel closed");
+            socket = candidate;
+            output = candidateOutput;
+        }
+        Thread reader = new Thread(() -> readResponses(candidate, input), "Thread-C");
+        reader.setDaemon(true);
+        reader.start();
+        return candidate;
+    }
+
+    private void readResponses(Socket connection, DataInputStream input) {
+        try {
+            while (true) {
+                Frame frame = Frame.readFrom(input);
+                if (frame.opcode != Frame.RESPONSE) continue;
+                CompletableFuture<String> response = inFlight.remove(frame.sequence);
+                if (response != null) {
+                    response.complete(frame.text());
+                }
+            }
+        } catch (IOException e) {
+            connectionLost(connection, e);
+        }
+    }
+
+    private void connectionLost(Socket connection, IOException cause) {
+        synchronized (this) {
+            if (socket != connection) return;
+            socket = null;
+            output = null;
+        }
+        try {
+            connection.close();
+        } catch (IOException ignored) {}
+        if (!closed) {
+            System.err.println("Connection to coordinator lost: " + (cause.getMessage() != null ? cause.getMessage() : "No message"));
+        }
+        IOException failure = new IOException("Connection to coordinator lost");
+        for (Long requestID : inFlight.keySet()) {
+            CompletableFuture<String> response = inFlight.remove(requestID);
+            if (response != null) response.completeExceptionally(failure);
+        }
+    }
+
+    private void failQueued() {
+        IOException failure = new IOException("Control channel closed");
+        Request request;
+        while ((request = queued.poll()) != null) {
+            request.response.completeExceptionally(failure);
+        }
+    }
+
+    void close() {
+        Socket current;
+        synchronized (this) {
+            closed = true;
+            current = socket;
+        }
+        writer.interrupt(); // Out of take() or a reconnect backoff; a write in progress fails once the socket closes
+        if (current != null) connectionLost(current, new IOException("Closed"));
+        failQueued();
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
+
+// The participant's end of one delivery connection. Messages arrive as frames on the socket until the Coordinator
+// switches the participant to its shared-memory ring (RING); from then on they are read straight from the ring and
+// the socket only carries heartbeats. A reader lapped by the ring writer asks for the rest over TCP (RING_FALLBACK)
+// and is switched back once caught up. Acks and heartbeat echoes go back on the socket.
+// The ring is written once for every reader, so the Coordinator's ack window cannot hold it back for one of them; the
+// reader applies a window of its own instead, and stops taking from the ring while RING_WINDOW messages it passed on
+// are unacknowledged. Either way the receiver holds at most a window of unacknowledged messages.
+class DeliveryConnection implements Closeable {
+    interface Receiver {
+        void message(Frame message) throws IOException; // MESSAGE or GROUP_MESSAGE, in sequence order
+        void drained() throws IOException;              // Nothing more is ready; a good moment to commit and ack
+    }
+
+    private static final int RING_BATCH = 1024;          // Most ring messages taken between socket checks
+    private static final int SPINS = 100;                // Empty polls before parking
+    private static final long MAX_PARK_NANOS = 1_000_000;
+    static final int RING_WINDOW = 8192;                 // As the Coordinator's default ackWindow
+
+    private final int participantID;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private SharedRing ring; // Kept mapped across fallbacks
+    private SharedRing.Reader ringReader;
+    private long lastSequence = 0; // Of the last message handed to the receiver
+    private final long[] ringUnacked = new long[RING_WINDOW]; // Sequences taken from the ring, oldest first, circular
+    private int ringUnackedFirst = 0;
+    private int ringUnackedCount = 0;
+
+    DeliveryConnection(int participantID, Socket socket) throws IOException {
+        this.participantID = participantID;
+        this.socket = socket;
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    // Returns only by exception, normally when the connection is closed from either end
+    void run(Receiver receiver) throws IOException {
+        int idle = 0;
+        while (true) {
+            if (ringReader != null) {
+                int window = RING_WINDOW - ringUnackedCount; // Records read, delivered or not, never exceed it
+                int records = window == 0 ? 0 : ringReader.poll(Math.min(RING_BATCH, window), message -> {
+                    ringUnacked[(ringUnackedFirst + ringUnackedCount++) % RING_WINDOW] = message.sequence;
+                    deliver(receiver, message);
+                });
+                if (ringReader.lapped()) {
+                    receiver.drained();
+                    new Frame(Frame.RING_FALLBACK, participantID, lastSequence, new byte[0]).writeTo(output);
+                    output.flush();
+                    ringReader = null;
+                    continue;
+                }
+                if (records > 0) {
+                    idle = 0;
+                    if (input.available() == 0) continue;
+                    // A reader kept busy by the ring still answers heartbeats between batches
+                } else if (input.available() == 0) {
+                    // Idle, or waiting on the window: draining acks what the receiver has stored since
+                    if (idle++ == 0 || window == 0) receiver.drained();
+                    if (!await(idle)) continue;
+                }
+            }
+            Frame frame = Frame.readFrom(input);
+            if (frame.opcode == Frame.MESSAGE || frame.opcode == Frame.GROUP_MESSAGE) {
+                deliver(receiver, frame);
+            } else if (frame.opcode == Frame.MESSAGE_BATCH) {
+                for (Frame message : frame.frames()) {
+                    if (message.opcode == Frame.MESSAGE || message.opcode == Frame.GROUP_MESSAGE) deliver(receiver, message);
+                }
+            } else if (frame.opcode == Frame.HEARTBEAT) {
+                frame.writeTo(output); // Echoed as is
+                output.flush();
+                idle = 0; // Drained again below, or on the next idle ring poll, so a background sync is acked soon
+            } else if (frame.opcode == Frame.RING) {
+                if (ring == null || !ring.path().toString().equals(frame.ringPath())) {
+                    ring = SharedRing.open(Paths.get(frame.ringPath()));
+                }
+                ringReader = ring.reader(participantID, frame.ringStart());
+                idle = 0;
+            }
+            if (ringReader == null && input.available() == 0) {
+                receiver.drained();
+            }
+        }
+    }
+
+    // Cumulative: every message through this sequence is safely received
+    void ack(long sequence) throws IOException {
+        while (ringUnackedCount > 0 && ringUnacked[ringUnackedFirst] <= sequence) {
+            ringUnackedFirst = (ringUnackedFirst + 1) % RING_WINDOW;
+            ringUnackedCount--;
+        }
+        new Frame(Frame.ACK, participantID, sequence, new byte[0]).writeTo(output);
+        output.flush();
+    }
+
+    private void deliver(Receiver receiver, Frame message) throws IOException {
+        lastSequence = Math.max(lastSequence, message.sequence);
+        receiver.message(message);
+    }
+
+    // Spins, then parks for longer and longer, and at the longest waits on the socket instead, so heartbeats and a
+    // closed connection are still noticed. True once the socket has data.
+    private boolean await(int idle) throws IOException {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+            return false;
+        }
+        long park = 1_000L << Math.min(20, idle - SPINS);
+        if (park < MAX_PARK_NANOS) {
+            LockSupport.parkNanos(park);
+            return false;
+        }
+        socket.setSoTimeout((int) (MAX_PARK_NANOS / 1_000_000));
+        input.mark(1);
+        try {
+            if (input.read() < 0) throw new EOFException("Delivery connection closed");
+            input.reset();
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Headless load: N simulated participants in one process, all on loopback, driving msends at a fixed total rate
+// with optional disconnect/reconnect churn. Each message carries its send time, so delivery latency is measured
+// on a single clock; messages retained for a disconnected participant count from their original send.
+// Usage: java LoadGenerator <coordinator_ip> <coordinator_port> [key=value ...]
+public class LoadGenerator {
+    private final String coordinatorIP;
+    private final int coordinatorPort;
+    private final int participants;
+    private final int firstID;
+    private final int firstPort;
+    private final int rate;          // Messages per second across all senders
+    private final int messageBytes;
+    private final int durationSeconds;
+    private final long churnMs;      // Disconnect and reconnect one participant this often; 0 disables
+    private final Semaphore inFlight; // Unacknowledged msends
+    private final boolean sharedMemory; // Ask for delivery through the Coordinator's shared-memory ring
+
+    private final List<Simulated> simulated = new ArrayList<>();
+    private final Histogram latencyMicros = new Histogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final Map<String, AtomicLong> rejected = new ConcurrentSkipListMap<>(); // By response
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong churned = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong(); // Sequence at or below one already received
+    private final AtomicLong gaps = new AtomicLong();       // Sequence skipping ahead; every participant receives every msend
+
+    LoadGenerator(String coordinatorIP, int coordinatorPort, Properties options) {
+        this.coordinatorIP = coordinatorIP;
+        this.coordinatorPort = coordinatorPort;
+        this.participants = Integer.parseInt(options.getProperty("participants", "4"));
+        this.firstID = Integer.parseInt(options.getProperty("firstID", "9001"));
+        this.firstPort = Integer.parseInt(options.getProperty("firstPort", "9001"));
+        this.rate = Integer.parseInt(options.getProperty("rate", "1000"));
+        this.messageBytes = Math.max(8, Integer.parseInt(options.getProperty("messageBytes", "64")));
+        this.durationSeconds = Integer.parseInt(options.getProperty("duration", "10"));
+        this.churnMs = Long.parseLong(options.getProperty("churnMs", "0"));
+        this.inFlight = new Semaphore(Integer.parseInt(options.getProperty("maxInFlight", "1000")));
+        this.sharedMemory = options.getProperty("transport", "tcp").equals("shm");
+    }
+
+    // One participant: a control channel of its own and a listener the Coordinator delivers to
+    private class Simulated implements Runnable {
+        final int id;
+        final int port;
+        final ControlChannel control;
+        final ServerSocket listener;
+        volatile boolean online = false;
+        private long lastSequence = 0; // Only touched by the receiver thread
+
+        Simulated(int id, int port) throws IOException {
+            this.id = id;
+            this.port = port;
+            this.control = new ControlChannel(coordinatorIP, coordinatorPort);
+            this.listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            Thread receiver = new Thread(this, "Receiver-" + id);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        // Accepts the Coordinator's delivery connections one after another, across reconnects
+        @Override
+        public void run() {
+            while (!listener.isClosed()) {
+                try (DeliveryConnection delivery = new DeliveryConnection(id, listener.accept())) {
+                    long[] ackedUpTo = {0};
+                    delivery.run(new DeliveryConnection.Receiver() {
+                        @Override
+                        public void message(Frame message) {
+                            received(message);
+                        }
+
+                        // Ack cumulatively whenever the connection is drained, as a Participant does after committing
+                        @Override
+                        public void drained() throws IOException {
+                            if (lastSequence > ackedUpTo[0]) {
+                                delivery.ack(lastSequence);
+                                ackedUpTo[0] = lastSequence;
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    // Delivery connection closed by a disconnect or at shutdown
+                }
+            }
+        }
+
+        private void received(Frame message) {
+            long sentAt = ByteBuffer.wrap(message.payload, 8, 8).getLong(); // After the Coordinator's timestamp
+            latencyMicros.record((System.nanoTime() - sentAt) / 1000);
+            delivered.incrementAndGet();
+            if (lastSequence > 0 && message.sequence <= lastSequence) {
+                duplicates.incrementAndGet();
+            } else if (lastSequence > 0 && message.sequence > lastSequence + 1) {
+                gaps.incrementAndGet();
+            }
+            lastSequence = Math.max(lastSequence, message.sequence);
+        }
+
+        String request(byte opcode, byte[] payload) throws Exception {
+            return control.send(opcode, id, payload).get(5, TimeUnit.SECONDS);
+        }
+
+        byte[] address() {
+            return Frame.addressPayload(InetAddress.getLoopbackAddress().getHostAddress(), port, sharedMemory ? Frame.SHARED_MEMORY : 0);
+        }
+
+        void close() {
+            control.close();
+            try {
+                listener.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    void run() throws Exception {
+        for (int i = 0; i < participants; i++) {
+            Simulated participant = new Simulated(firstID + i, firstPort + i);
+            simulated.add(participant);
+            String response = participant.request(Frame.REGISTER, participant.address());
+            if (!response.equals("Participant registered")) {
+                throw new IOException("Participant " + participant.id + ": " + response);
+            }
+            participant.online = true;
+        }
+        System.out.println(participants + " participants registered; sending " + rate + " msg/s of " + messageBytes
+                + " bytes for " + durationSeconds + " s over " + (sharedMemory ? "shared memory" : "TCP") + (churnMs > 0 ? ", churn every " + churnMs + " ms" : ""));
+
+        ScheduledExecutorService churn = Executors.newSingleThreadScheduledExecutor();
+        if (churnMs > 0) {
+            churn.scheduleWithFixedDelay(this::churnOne, churnMs, churnMs, TimeUnit.MILLISECONDS);
+        }
+        long start = System.nanoTime();
+        try {
+            drive(start, start + durationSeconds * 1_000_000_000L);
+        } finally {
+            churn.shutdownNow();
+            churn.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        long elapsed = System.nanoTime() - start;
+        Thread.sleep(1000); // Let deliveries in flight drain before reporting
+        report(elapsed / 1e9);
+
+        for (Simulated participant : simulated) {
+            try {
+                participant.request(Frame.DEREGISTER, new byte[0]);
+            } catch (Exception e) {
+                System.err.println("Failed to deregister participant " + participant.id + ": " + e.getMessage());
+            }
+            participant.close();
+        }
+    }
+
+    // Paces sends against the clock, round-robin over the participants that are online
+    private void drive(long start, long end) throws InterruptedException {
+        long now;
+        int next = 0;
+        while ((now = System.nanoTime()) < end) {
+            long due = (now - start) * rate / 1_000_000_000L;
+            int skipped = 0;
+            while (sent.get() < due && skipped < simulated.size()) {
+                Simulated sender = simulated.get(next++ % simulated.size());
+                if (!sender.online) {
+                    skipped++;
+                    continue;
+                }
+                skipped = 0;
+                inFlight.acquire();
+                byte[] message = new byte[messageBytes];
+                ByteBuffer.wrap(message).putLong(System.nanoTime());
+                sent.incrementAndGet();
+                sender.control.send(Frame.MSEND, sender.id, message).whenComplete((ack, e) -> {
+                    inFlight.release();
+                    if (e == null && ack.startsWith("Message Acknowledged")) {
+                        acknowledged.incrementAndGet();
+                    } else {
+                        String reason = e == null ? (ack.startsWith("Retry after") ? "Retry after (throttled)" : ack)
+                                : e.getClass().getSimpleName() + ": " + e.getMessage();
+                        rejected.computeIfAbsent(reason, key -> new AtomicLong()).incrementAndGet();
+                    }
+                });
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void churnOne() {
+        Simulated participant = simulated.get(ThreadLocalRandom.current().nextInt(simulated.size()));
+        try {
+            participant.online = false;
+            participant.request(Frame.DISCONNECT, new byte[0]);
+            Thread.sleep(churnMs / 2);
+            String response = participant.request(Frame.RECONNECT, participant.address());
+            participant.online = response.equals("Participant reconnected");
+            churned.incrementAndGet();
+        } catch (Exception e) {
+            System.err.println("Churn failed for participant " + participant.id + ": " + e.getMessage());
+        }
+    }
+
+    private void report(double seconds) {
+        System.out.printf("Sent %d, acknowledged %d in %.1f s (%.0f msg/s acknowledged)%n",
+                sent.get(), acknowledged.get(), seconds, acknowledged.get() / seconds);
+        rejected.forEach((reason, count) -> System.out.println("  rejected " + count + ": " + reason));
+        System.out.printf("Delivered %d (%.0f msg/s), %d disconnect/reconnect cycles, %d gaps, %d duplicates%n",
+                delivered.get(), delivered.get() / seconds, churned.get(), gaps.get(), duplicates.get());
+        System.out.println("Delivery latency us: p50<=" + latencyMicros.percentile(50) + " p99<=" + latencyMicros.percentile(99)
+                + " p999<=" + latencyMicros.percentile(99.9) + " max<=" + latencyMicros.max());
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java LoadGenerator <coordinator_ip> <coordinator_port> [participants=4] [rate=1000] "
+                    + "[messageBytes=64] [duration=10] [churnMs=0] [maxInFlight=1000] [firstID=9001] [firstPort=9001] [transport=tcp|shm]");
+            return;
+        }
+        Properties options = new Properties();
+        for (int i = 2; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            options.setProperty(option[0].trim(), option.length > 1 ? option[1].trim() : "");
+        }
+        try {
+            new LoadGenerator(args[0], Integer.parseInt(args[1]), options).run();
+        } catch (Exception e) {
+            System.err.println("Load generator failed: " + e.getMessage());
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+
+// Flow.Publisher of a client's deliveries, for one Flow subscriber at a time: pass it to ParticipantClient as the
+// Subscriber. Messages wait here until demanded, and are acknowledged only once onNext has returned for them, so a
+// slow or absent subscriber holds back acknowledgements and, past the ack window, pauses delivery; what waits here is
+// bounded by that window (the Coordinator's, or over the shared-memory ring DeliveryConnection's own). The receiver thread never waits for demand, so heartbeats are still echoed
+// and the participant stays online however long the subscriber takes to ask. onNext runs on the receiver thread or
+// on the thread calling request(), one call at a time, and should not block for long either. A message whose onNext
+// throws cancels the subscription and goes to the next subscriber. Closing the client completes the subscriber.
+public class MessagePublisher implements Flow.Publisher<ParticipantClient.Message>, ParticipantClient.Subscriber {
+    private final Deque<ParticipantClient.Message> waiting = new ArrayDeque<>(); // Guarded by this
+    private Flow.Subscriber<? super ParticipantClient.Message> subscriber;
+    private long demand = 0;
+    private boolean closed = false;
+    private Flow.Subscriber<? super ParticipantClient.Message> refused; // Owed onError for a non-positive request
+    private long refusedRequest;
+    private boolean signalling = false; // A thread is in signal(); the subscriber is called from one thread at a time
+    private volatile long deliveredUpTo = 0; // Last sequence onNext returned for
+
+    private final class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ParticipantClient.Message> target;
+
+        Subscription(Flow.Subscriber<? super ParticipantClient.Message> target) {
+            this.target = target;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (MessagePublisher.this) {
+                if (subscriber != target) return;
+                if (n > 0) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                } else {
+                    subscriber = null;
+                    demand = 0;
+                    refused = target;
+                    refusedRequest = n;
+                }
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (MessagePublisher.this) {
+                if (subscriber == target) {
+                    subscriber = null;
+                    demand = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ParticipantClient.Message> subscriber) {
+        Objects.requireNonNull(subscriber);
+        String refused = null;
+        synchronized (this) {
+            if (closed) {
+                refused = "Client closed";
+            } else if (this.subscriber != null) {
+                refused = "Already subscribed";
+            } else {
+                this.subscriber = subscriber;
+                demand = 0;
+            }
+        }
+        subscriber.onSubscribe(new Subscription(subscriber));
+        if (refused != null) subscriber.onError(new IllegalStateException(refused));
+    }
+
+    @Override
+    public void onMessage(ParticipantClient.Message message) throws IOException {
+        synchronized (this) {
+            if (closed) throw new IOException("Client closed");
+            waiting.add(message);
+        }
+        signal();
+    }
+
+    @Override
+    public long onDrained(long receivedUpTo) {
+        return deliveredUpTo;
+    }
+
+    @Override
+    public void onClose() {
+        synchronized (this) {
+            closed = true;
+            waiting.clear(); // Never acknowledged, so the Coordinator keeps them for the participant
+        }
+        signal();
+    }
+
+    // Passes on whatever is owed (a refusal, demanded messages, completion) until nothing is; a thread that finds
+    // another already at it leaves the work to that one
+    private void signal() {
+        synchronized (this) {
+            if (signalling) return;
+            signalling = true;
+        }
+        while (true) {
+            Flow.Subscriber<? super ParticipantClient.Message> target;
+            ParticipantClient.Message next = null;
+            Long badRequest = null;
+            synchronized (this) {
+                if (refused != null) {
+                    target = refused;
+                    badRequest = refusedRequest;
+                    refused = null;
+                } else if (subscriber != null && demand > 0 && !waiting.isEmpty()) {
+                    target = subscriber;
+                    next = waiting.poll();
+                    demand--;
+                } else if (subscriber != null && closed) {
+                    target = subscriber;
+                    subscriber = null;
+                } else {
+                    signalling = false;
+                    return;
+                }
+            }
+            if (badRequest != null) {
+                target.onError(new IllegalArgumentException("Non-positive request: " + badRequest));
+            } else if (next == null) {
+                target.onComplete();
+            } else {
+                deliver(target, next);
+            }
+        }
+    }
+
+    private void deliver(Flow.Subscriber<? super ParticipantClient.Message> target, ParticipantClient.Message message) {
+        try {
+            target.onNext(message);
+            deliveredUpTo = message.sequence();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (!closed) waiting.addFirst(message);
+                if (subscriber == target) subscriber = null; // Treated as cancelled
+            }
+            System.err.println("Subscriber failed on message " + message.sequence() + ": " + e);
+        }
+    }
+}
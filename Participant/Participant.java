@@ -1,20 +1,26 @@
 import java.io.*;
-import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.*;
 
-public class Participant {
-    private int uniqueID;
-    private String coordinatorIP;
-    private int coordinatorPort;
+// Console front end to ParticipantClient: one command per line on stdin, received messages echoed and appended to
+// the receive log, which has fsynced them before they are acknowledged
+public class Participant implements ParticipantClient.Subscriber {
     private BufferedReader userInput;
-    private String logFile;
-    private ReceiverThread receiverThread;
-
-    public Participant(int id, String logFile, String address, int port) {
-        this.uniqueID = id;
-        this.logFile = logFile;
-        this.coordinatorIP = address;
-        this.coordinatorPort = port;
+    private final ReceiveLog receiveLog;
+    private final boolean echo;
+    private final ParticipantClient client;
+
+    public Participant(int id, String logFile, String address, int port, Properties options) throws IOException {
+        this.receiveLog = new ReceiveLog(logFile,
+                ReceiveLog.SyncPolicy.valueOf(options.getProperty("logSync", "interval").toUpperCase()),
+                Long.parseLong(options.getProperty("logSyncIntervalMs", "1000")),
+                Long.parseLong(options.getProperty("logSyncBytes", String.valueOf(1 << 20))));
+        this.echo = Boolean.parseBoolean(options.getProperty("echo", "true"));
+        this.client = new ParticipantClient(id, address, port, this);
         startConnection();
     }
 
@@ -23,6 +29,27 @@ public class Participant {
         new Thread(this::handleUserCommands, "Thread-A").start();
     }
 
+    @Override
+    public void onMessage(ParticipantClient.Message message) throws IOException {
+        String text = message.text();
+        if (echo) {
+            System.out.println("Received: " + (message.group() != null ? "[" + message.group() + "] " : "") + text);
+        }
+        receiveLog.append(message.sequence(), text);
+    }
+
+    // Commit once everything already received is in the buffer; the client then acks what the log has fsynced
+    @Override
+    public long onDrained(long receivedUpTo) throws IOException {
+        receiveLog.commit();
+        return receiveLog.syncedUpTo();
+    }
+
+    @Override
+    public long persistedUpTo() {
+        return receiveLog.persistedUpTo();
+    }
+
     private void handleUserCommands() {
         try {
             String command;
@@ -30,9 +57,6 @@ public class Participant {
                 System.out.print("input> ");
                 command = userInput.readLine();
                 if (command == null || command.equalsIgnoreCase("quit")) {
-                    if (receiverThread != null) {
-                        receiverThread.stopThread();
-                    }
                     break;
                 }
                 processCommand(command);
@@ -40,6 +64,12 @@ public class Participant {
         } catch (IOException e) {
             System.err.println("Error reading user input: " + e.getMessage());
         } finally {
+            client.close();
+            try {
+                receiveLog.close();
+            } catch (IOException e) {
+                System.err.println("Error closing receive log: " + e.getMessage());
+            }
             try {
                 userInput.close();
             } catch (IOException e) {
@@ -51,123 +81,90 @@ public class Participant {
     private void processCommand(String command) {
         String[] parts = command.split(" ", 2);
         String action = parts[0];
-        String response = "";
-
-        Socket socket = null;
-        DataOutputStream coordinatorOutput = null;
-        DataInputStream coordinatorInput = null;
 
         try {
-            socket = new Socket();
-            socket.connect(new InetSocketAddress(coordinatorIP, coordinatorPort), 5000);
-            socket.setSoTimeout(5000);
-            coordinatorOutput = new DataOutputStream(socket.getOutputStream());
-            coordinatorInput = new DataInputStream(socket.getInputStream());
-
             switch (action) {
                 case "register":
+                case "reconnect":
                     if (parts.length < 2) {
-                        System.out.println("Usage: register [port]");
+                        System.out.println("Usage: " + action + " [port] [shm]");
                         return;
                     }
-                    int listenPort = Integer.parseInt(parts[1]);
-                    ReceiverThread newReceiverThread = new ReceiverThread(logFile, listenPort);
-                    Thread.sleep(100); // Allow thread to attempt binding
-                    if (!newReceiverThread.isListening()) {
-                        System.out.println("Failed to bind to port " + listenPort);
-                        newReceiverThread.stopThread();
-                        return;
-                    }
-                    coordinatorOutput.writeUTF("register#" + uniqueID + "#" + InetAddress.getLocalHost().getHostAddress() + "#" + listenPort);
-                    coordinatorOutput.flush();
-                    response = coordinatorInput.readUTF();
-                    if (response.equals("Participant registered")) {
-                        System.out.println("Listening on port " + listenPort);
-                        if (receiverThread != null) {
-                            receiverThread.stopThread();
-                        }
-                        receiverThread = newReceiverThread;
-                    } else {
-                        newReceiverThread.stopThread();
-                        System.out.println(response);
-                    }
+                    String[] arguments = parts[1].trim().split("\\s+");
+                    int listenPort = Integer.parseInt(arguments[0]);
+                    boolean sharedMemory = arguments.length > 1 && arguments[1].equals("shm");
+                    String response = await(action.equals("register") ? client.register(listenPort, sharedMemory)
+                            : client.reconnect(listenPort, sharedMemory));
+                    System.out.println(response.equals("Participant registered") || response.equals("Participant reconnected")
+                            ? "Listening on port " + listenPort : response);
                     break;
 
                 case "deregister":
-                    if (receiverThread != null) {
-                        receiverThread.setShuttingDown(); // Signal shutdown before sending
-                    }
-                    coordinatorOutput.writeUTF("deregister#" + uniqueID);
-                    coordinatorOutput.flush();
-                    response = coordinatorInput.readUTF();
-                    if (receiverThread != null && response.equals("Participant deregistered")) {
-                        receiverThread.stopThread();
-                        receiverThread = null;
-                    }
-                    System.out.println(response);
+                    System.out.println(await(client.deregister()));
                     break;
 
                 case "disconnect":
-                    if (receiverThread != null) {
-                        receiverThread.setShuttingDown(); // Signal shutdown before sending
+                    System.out.println(await(client.disconnect()));
+                    break;
+
+                case "msend":
+                    if (parts.length < 2) {
+                        System.out.println("Usage: msend [message]");
+                        return;
+                    }
+                    // Not awaited: many msends can be in flight, each ack is printed when it arrives
+                    client.publish(parts[1].getBytes(StandardCharsets.UTF_8))
+                            .whenComplete((ack, e) -> System.out.println(outcome("msend", ack, e)));
+                    break;
+
+                case "mbatch":
+                    // One message per line, ended by an empty line; the whole batch is sent and acknowledged as one request
+                    List<byte[]> messages = new ArrayList<>();
+                    String line;
+                    while ((line = userInput.readLine()) != null && !line.isEmpty()) {
+                        messages.add(line.getBytes(StandardCharsets.UTF_8));
                     }
-                    coordinatorOutput.writeUTF("disconnect#" + uniqueID);
-                    coordinatorOutput.flush();
-                    response = coordinatorInput.readUTF();
-                    if (receiverThread != null && response.equals("Participant disconnected")) {
-                        receiverThread.stopThread();
-                        receiverThread = null;
+                    if (messages.isEmpty()) {
+                        System.out.println("Usage: mbatch, then one message per line and an empty line to send");
+                        return;
                     }
-                    System.out.println(response);
+                    client.publish(messages).whenComplete((ack, e) -> System.out.println(outcome("mbatch", ack, e)));
                     break;
 
-                case "reconnect":
+                case "subscribe":
+                case "unsubscribe":
                     if (parts.length < 2) {
-                        System.out.println("Usage: reconnect [port]");
+                        System.out.println("Usage: " + action + " [group]");
                         return;
                     }
-                    listenPort = Integer.parseInt(parts[1]);
-                    newReceiverThread = new ReceiverThread(logFile, listenPort);
-                    Thread.sleep(100); // Allow thread to attempt binding
-                    if (!newReceiverThread.isListening()) {
-                        System.out.println("Failed to bind to port " + listenPort);
-                        newReceiverThread.stopThread();
+                    String group = parts[1].trim();
+                    System.out.println(await(action.equals("subscribe") ? client.subscribe(group) : client.unsubscribe(group)));
+                    break;
+
+                case "gsend":
+                    String[] groupMessage = parts.length < 2 ? new String[0] : parts[1].split(" ", 2);
+                    if (groupMessage.length < 2) {
+                        System.out.println("Usage: gsend [group] [message]");
                         return;
                     }
-                    coordinatorOutput.writeUTF("reconnect#" + uniqueID + "#" + InetAddress.getLocalHost().getHostAddress() + "#" + listenPort);
-                    coordinatorOutput.flush();
-                    response = coordinatorInput.readUTF();
-                    if (response.equals("Participant reconnected")) {
-                        System.out.println("Listening on port " + listenPort);
-                        if (receiverThread != null) {
-                            receiverThread.stopThread();
-                        }
-                        receiverThread = newReceiverThread;
-                    } else {
-                        newReceiverThread.stopThread();
-                        System.out.println(response);
-                    }
+                    client.publish(groupMessage[0], groupMessage[1].getBytes(StandardCharsets.UTF_8))
+                            .whenComplete((ack, e) -> System.out.println(outcome("gsend", ack, e)));
                     break;
 
-                case "msend":
-                    if (parts.length < 2) {
-                        System.out.println("Usage: msend [message]");
+                case "stats":
+                    if (parts.length > 1) {
+                        System.out.println("Usage: stats (settings are changed over JMX)");
                         return;
                     }
-                    String message = parts[1];
-                    coordinatorOutput.writeUTF("msend#" + uniqueID + "#" + message);
-                    coordinatorOutput.flush();
-                    response = coordinatorInput.readUTF();
-                    System.out.println(response);
+                    System.out.println(await(client.stats()));
                     break;
 
                 default:
-                    response = "Invalid command";
-                    System.out.println(response);
+                    System.out.println("Invalid command");
                     break;
             }
-        } catch (SocketTimeoutException e) {
-            System.err.println("Command timed out: " + e.getMessage());
+        } catch (TimeoutException e) {
+            System.err.println("Command timed out");
             System.out.println("Command timed out");
         } catch (IOException e) {
             System.err.println("IO error in processCommand: " + e.getMessage());
@@ -175,17 +172,36 @@ public class Participant {
         } catch (InterruptedException e) {
             System.err.println("Interrupted while processing command: " + e.getMessage());
             System.out.println("Interrupted");
-        } finally {
-            try {
-                if (coordinatorInput != null) coordinatorInput.close();
-                if (coordinatorOutput != null) coordinatorOutput.close();
-                if (socket != null && !socket.isClosed()) socket.close();
-            } catch (IOException e) {
-                System.err.println("Error closing resources: " + e.getMessage());
-            }
         }
     }
 
+    // The Coordinator's response, whether or not it was a success
+    private static String await(CompletableFuture<String> response) throws IOException, InterruptedException, TimeoutException {
+        try {
+            return response.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = rootCause(e);
+            if (cause instanceof ParticipantClient.RejectedException) return cause.getMessage();
+            if (cause instanceof TimeoutException) throw (TimeoutException) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    // The response to print for a request that was not awaited
+    private static String outcome(String command, String response, Throwable e) {
+        if (e == null) return response;
+        Throwable cause = rootCause(e);
+        if (cause instanceof TimeoutException) return command + " timed out";
+        return cause instanceof ParticipantClient.RejectedException ? cause.getMessage() : command + " failed: " + cause.getMessage();
+    }
+
+    private static Throwable rootCause(Throwable e) {
+        while ((e instanceof ExecutionException || e instanceof CompletionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
     public static void main(String[] args) {
         if (args.length != 1) {
             System.out.println("Usage: java Participant <config_file>");
@@ -196,90 +212,18 @@ public class Participant {
             int uniqueID = Integer.parseInt(scanner.nextLine());
             String logFile = scanner.nextLine();
             String[] coordinatorInfo = scanner.nextLine().split(" ");
-            new Participant(uniqueID, logFile, coordinatorInfo[0], Integer.parseInt(coordinatorInfo[1]));
+            Properties options = new Properties(); // Optional key=value lines after the coordinator address
+            while (scanner.hasNextLine()) {
+                String line = scanner.nextLine().trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] option = line.split("=", 2);
+                options.setProperty(option[0].trim(), option.length > 1 ? option[1].trim() : "");
+            }
+            new Participant(uniqueID, logFile, coordinatorInfo[0], Integer.parseInt(coordinatorInfo[1]), options);
         } catch (FileNotFoundException e) {
             System.err.println("Configuration file not found: " + args[0]);
-        }
-    }
-}
-
-class ReceiverThread implements Runnable {
-    private ServerSocket serverSocket;
-    private int port;
-    private String fileName;
-    private volatile boolean running = true;
-    private volatile boolean isShuttingDown = false;
-    private volatile boolean isListening = false; // Track binding success
-    private Socket clientSocket;
-    private DataInputStream input;
-    private FileOutputStream fileOut;
-
-    ReceiverThread(String fileName, int port) {
-        this.fileName = fileName;
-        this.port = port;
-        new Thread(this, "Thread-B").start();
-    }
-
-    @Override
-    public void run() {
-        try {
-            serverSocket = new ServerSocket(port);
-            isListening = true; // Binding succeeded
-            while (running) {
-                try {
-                    clientSocket = serverSocket.accept();
-                    input = new DataInputStream(clientSocket.getInputStream());
-                    fileOut = new FileOutputStream(fileName, true);
-
-                    while (running) {
-                        String message = input.readUTF();
-                        if (message.equals("eof")) continue;
-                        System.out.println("Received: " + message);
-                        fileOut.write((message + "\n").getBytes());
-                        fileOut.flush();
-                    }
-                } catch (IOException e) {
-                    if (running && !isShuttingDown) {
-                        System.err.println("Receiver error during message read: " + (e.getMessage() != null ? e.getMessage() : "No message"));
-                    }
-                } finally {
-                    try {
-                        if (fileOut != null) fileOut.close();
-                        if (input != null) input.close();
-                        if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
-                    } catch (IOException e) {
-                        System.err.println("Error closing temporary resources: " + e.getMessage());
-                    }
-                }
-            }
-        } catch (IOException e) {
-            if (running && !isShuttingDown) {
-                System.err.println("Receiver error on startup: " + e.getMessage());
-            }
-            isListening = false; // Binding failed
-        }
-    }
-
-    public boolean isListening() {
-        return isListening;
-    }
-
-    public void setShuttingDown() {
-        isShuttingDown = true;
-    }
-
-    public void stopThread() {
-        isShuttingDown = true;
-        running = false;
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-            if (clientSocket != null && !clientSocket.isClosed()) {
-                clientSocket.close();
-            }
         } catch (IOException e) {
-            System.err.println("Error closing receiver: " + e.getMessage());
+            System.err.println("Failed to open log file: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,326 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+// Embeddable participant. Requests share one reused control connection and return at once with a future of the
+// Coordinator's response, without waiting on the socket; the future fails with a RejectedException when the
+// Coordinator refuses. Futures complete on the control connection's reader thread, so callbacks attached to them
+// should not block.
+// Deliveries are pushed to the Subscriber given at construction (see MessagePublisher for a Flow.Publisher).
+// Threads: one request writer, one response reader per control connection and one receiver while registered, none
+// per call.
+public class ParticipantClient implements Closeable {
+    private static final int ACK_EVERY = 1024; // Messages; keeps well inside the Coordinator's ack window
+
+    // Called on the receiver thread, in sequence order; messages resent after a reconnect are not passed on again.
+    // What onDrained returns is acknowledged, and the Coordinator may then discard it, so a subscriber that persists
+    // messages should only return what is safely stored. The same thread echoes the Coordinator's heartbeats, so one
+    // that blocks for longer than the Coordinator's heartbeat detection allows (about 4 s at its defaults) is moved
+    // offline, and gets the rest after reconnecting.
+    public interface Subscriber {
+        void onMessage(Message message) throws IOException;
+
+        // Nothing more is ready for now, or many messages have arrived without a pause. Returns the last sequence that
+        // is safely stored, at most receivedUpTo; by default everything passed to onMessage
+        default long onDrained(long receivedUpTo) throws IOException {
+            return receivedUpTo;
+        }
+
+        // The last sequence stored by an earlier run, for a subscriber that keeps its own record; resent messages up
+        // to it are skipped
+        default long persistedUpTo() {
+            return 0;
+        }
+
+        // The client was closed; nothing more will arrive. Called once the receiver has returned from the subscriber
+        default void onClose() {}
+    }
+
+    public static final class Message {
+        private final Frame frame;
+
+        Message(Frame frame) {
+            this.frame = frame;
+        }
+
+        public long sequence() {
+            return frame.sequence;
+        }
+
+        public int senderID() {
+            return frame.participantID;
+        }
+
+        // When the Coordinator accepted it, in milliseconds since the epoch
+        public long timestamp() {
+            return frame.timestamp();
+        }
+
+        // Null for an msend to everyone
+        public String group() {
+            return frame.opcode == Frame.GROUP_MESSAGE ? frame.group() : null;
+        }
+
+        public byte[] payload() {
+            return frame.messageBytes();
+        }
+
+        public String text() {
+            return frame.messageText();
+        }
+    }
+
+    // The Coordinator answered, but not with success; the message is its response
+    public static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String response) {
+            super(response);
+        }
+
+        // Suggested wait before retrying a throttled publish, or -1 if it was refused for another reason
+        public long retryAfterMs() {
+            String response = getMessage();
+            if (!response.startsWith("Retry after ") || !response.endsWith(" ms")) return -1;
+            try {
+                return Long.parseLong(response.substring("Retry after ".length(), response.length() - " ms".length()));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    private final int participantID;
+    private final ControlChannel control;
+    private final Subscriber subscriber;
+    private Receiver receiver; // Guarded by this
+    private volatile long receivedUpTo; // Last sequence passed to the subscriber, in this run or an earlier one
+
+    public ParticipantClient(int participantID, String coordinatorIP, int coordinatorPort, Subscriber subscriber) {
+        this.participantID = participantID;
+        this.control = new ControlChannel(coordinatorIP, coordinatorPort);
+        this.subscriber = subscriber;
+        this.receivedUpTo = subscriber.persistedUpTo();
+    }
+
+    public int participantID() {
+        return participantID;
+    }
+
+    // Listens on the port for the Coordinator's deliveries; shared memory is only a request, honoured when the
+    // Coordinator runs on this host. Any earlier listener is closed once the Coordinator accepts.
+    public CompletableFuture<String> register(int listenPort, boolean sharedMemory) {
+        return connect(Frame.REGISTER, listenPort, sharedMemory, "Participant registered");
+    }
+
+    public CompletableFuture<String> reconnect(int listenPort, boolean sharedMemory) {
+        return connect(Frame.RECONNECT, listenPort, sharedMemory, "Participant reconnected");
+    }
+
+    // Messages keep being retained until reconnect
+    public CompletableFuture<String> disconnect() {
+        return leave(Frame.DISCONNECT, "Participant disconnected");
+    }
+
+    public CompletableFuture<String> deregister() {
+        return leave(Frame.DEREGISTER, "Participant deregistered");
+    }
+
+    // Completes once the message is in the Coordinator's log (per its fsync policy) and queued for every participant.
+    // "Message Acknowledged (retained)" is a success too: nobody was online, and the log holds it for their reconnect.
+    public CompletableFuture<String> publish(byte[] message) {
+        return request(Frame.MSEND, message, ParticipantClient::acknowledged);
+    }
+
+    // Sent, appended and acknowledged as one request
+    public CompletableFuture<String> publish(List<byte[]> messages) {
+        if (messages.isEmpty()) return CompletableFuture.failedFuture(new IllegalArgumentException("Empty batch"));
+        Frame batch = Frame.batch(participantID, 0, messages);
+        if (batch.payload.length > Frame.MAX_PAYLOAD) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Batch too large"));
+        }
+        return request(Frame.MSEND_BATCH, batch.payload, response -> response.startsWith("Batch Acknowledged"));
+    }
+
+    public CompletableFuture<String> publish(String group, byte[] message) {
+        byte[] payload = Frame.groupPayload(group.getBytes(StandardCharsets.UTF_8), message);
+        return request(Frame.GSEND, payload, ParticipantClient::acknowledged);
+    }
+
+    // Appended by the Coordinator, whether or not a recipient was online; retrying would only publish a duplicate
+    private static boolean acknowledged(String response) {
+        return response.equals("Message Acknowledged") || response.equals("Message Acknowledged (retained)");
+    }
+
+    public CompletableFuture<String> subscribe(String group) {
+        return request(Frame.SUBSCRIBE, group.getBytes(StandardCharsets.UTF_8),
+                response -> response.startsWith("Subscribed to ") || response.startsWith("Already subscribed to "));
+    }
+
+    public CompletableFuture<String> unsubscribe(String group) {
+        return request(Frame.UNSUBSCRIBE, group.getBytes(StandardCharsets.UTF_8),
+                response -> response.startsWith("Unsubscribed from ") || response.startsWith("Not subscribed to "));
+    }
+
+    // The Coordinator's report
+    public CompletableFuture<String> stats() {
+        return request(Frame.STATS, new byte[0], response -> !response.startsWith("Usage:"));
+    }
+
+    private CompletableFuture<String> request(byte opcode, byte[] payload, Predicate<String> succeeded) {
+        return control.send(opcode, participantID, payload).thenApply(response -> {
+            if (!succeeded.test(response)) throw new CompletionException(new RejectedException(response));
+            return response;
+        });
+    }
+
+    private CompletableFuture<String> connect(byte opcode, int listenPort, boolean sharedMemory, String success) {
+        byte[] address;
+        Receiver candidate;
+        try {
+            address = Frame.addressPayload(InetAddress.getLocalHost().getHostAddress(), listenPort,
+                    sharedMemory ? Frame.SHARED_MEMORY : 0);
+            candidate = new Receiver(listenPort);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return request(opcode, address, success::equals).whenComplete((response, e) -> {
+            Receiver replaced = candidate;
+            if (e == null) {
+                synchronized (this) {
+                    replaced = receiver;
+                    receiver = candidate;
+                }
+            }
+            if (replaced != null) replaced.close();
+        });
+    }
+
+    private CompletableFuture<String> leave(byte opcode, String success) {
+        Receiver current;
+        synchronized (this) {
+            current = receiver;
+        }
+        if (current != null) current.closing = true; // The Coordinator closes the delivery connection before answering
+        return request(opcode, new byte[0], success::equals).whenComplete((response, e) -> {
+            if (current == null) return;
+            if (e != null) {
+                current.closing = false;
+                return;
+            }
+            synchronized (this) {
+                if (receiver == current) receiver = null;
+            }
+            current.close();
+        });
+    }
+
+    // Fails whatever is in flight; the subscriber is told once the receiver has stopped taking deliveries, which waits
+    // for a call into the subscriber to return
+    @Override
+    public void close() {
+        Receiver current;
+        synchronized (this) {
+            current = receiver;
+            receiver = null;
+        }
+        if (current != null) {
+            current.close();
+            current.awaitStopped();
+        }
+        control.close();
+        subscriber.onClose();
+    }
+
+    // Accepts the Coordinator's delivery connections on one port, one after another, until closed
+    private final class Receiver implements Runnable, DeliveryConnection.Receiver {
+        private final ServerSocket listener;
+        private final Thread thread;
+        private volatile DeliveryConnection delivery;
+        private volatile boolean closing = false; // Errors are expected from here on
+        private long ackedUpTo = 0;
+        private int unacked = 0;
+
+        Receiver(int port) throws IOException {
+            try {
+                listener = new ServerSocket(port);
+            } catch (IOException e) {
+                throw new IOException("Failed to bind to port " + port + ": " + e.getMessage(), e);
+            }
+            thread = new Thread(this, "Receiver-" + participantID);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!listener.isClosed()) {
+                try (DeliveryConnection connection = new DeliveryConnection(participantID, listener.accept())) {
+                    delivery = connection;
+                    ackedUpTo = 0; // The Coordinator resends from its saved cursor, which can be behind: ack afresh
+                    unacked = 0;
+                    connection.run(this);
+                } catch (IOException e) {
+                    if (!closing && !listener.isClosed()) {
+                        System.err.println("Receiver error during message read: " + (e.getMessage() != null ? e.getMessage() : "No message"));
+                    }
+                }
+                try {
+                    subscriber.onDrained(receivedUpTo);
+                } catch (IOException e) {
+                    System.err.println("Subscriber failed after the delivery connection closed: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void message(Frame frame) throws IOException {
+            unacked++;
+            if (frame.sequence > receivedUpTo) { // Otherwise resent after a reconnect and already passed on
+                subscriber.onMessage(new Message(frame));
+                receivedUpTo = frame.sequence;
+            }
+            if (unacked >= ACK_EVERY) drained();
+        }
+
+        // Cumulative: everything the subscriber reports as stored
+        @Override
+        public void drained() throws IOException {
+            long upTo = Math.min(receivedUpTo, subscriber.onDrained(receivedUpTo));
+            unacked = 0;
+            if (upTo > ackedUpTo) {
+                delivery.ack(upTo);
+                ackedUpTo = upTo;
+            }
+        }
+
+        // Unless called from the subscriber itself, on this receiver's thread
+        void awaitStopped() {
+            if (Thread.currentThread() == thread) return;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        void close() {
+            closing = true;
+            try {
+                listener.close();
+                DeliveryConnection current = delivery;
+                if (current != null) current.close();
+            } catch (IOException e) {
+                System.err.println("Error closing receiver: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+// Append-only file of received messages, one per line. Messages are buffered and written in groups:
+// the receiver commits whenever it has drained what the socket already delivered, so a burst
+// costs one write (and at most one fsync) instead of one per message.
+// A small mark file beside it records the sequence of the last line, as written and as fsynced, with the file length at
+// each. Only the fsynced sequence may be acknowledged; on open the file is cut back to the last length recorded, so a
+// restarted participant neither loses acknowledged lines nor logs a resent message twice.
+class ReceiveLog implements Closeable {
+    enum SyncPolicy {
+        MESSAGE,  // fsync every commit
+        INTERVAL, // fsync at most every syncIntervalMs
+        BYTES     // fsync once syncBytes have been written since the last one
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Lines left unsynced at most, whatever the policy, so acknowledgements keep up with the Coordinator's ack window
+    private static final int MAX_UNSYNCED_MESSAGES = 4096;
+    private static final int MARK_LENGTH = 4 * 8; // Written sequence | written length | synced sequence | synced length
+
+    private final FileChannel channel;
+    private final FileChannel markChannel;
+    private final SyncPolicy policy;
+    private final long syncIntervalMs;
+    private final long syncBytes;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer mark = ByteBuffer.allocate(MARK_LENGTH);
+    private final ScheduledExecutorService syncer;
+    private final long persistedUpTo; // As found on open
+    private long bufferedUpTo;        // Sequence of the last line appended
+    private long writtenUpTo;         // ... written to the file
+    private long writtenLength;
+    private volatile long syncedUpTo; // ... fsynced
+    private long syncedLength;
+    private long unsynced = 0; // Bytes written to the file but not yet fsynced
+    private int unsyncedMessages = 0;
+    private long lastSync = System.currentTimeMillis();
+
+    ReceiveLog(String fileName, SyncPolicy policy, long syncIntervalMs, long syncBytes) throws IOException {
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.markChannel = FileChannel.open(Paths.get(fileName + ".mark"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.policy = policy;
+        this.syncIntervalMs = syncIntervalMs;
+        this.syncBytes = syncBytes;
+        this.persistedUpTo = recover();
+        bufferedUpTo = writtenUpTo = syncedUpTo = persistedUpTo;
+        if (policy != SyncPolicy.MESSAGE) {
+            // Covers a group left unsynced when the stream goes quiet
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Thread-D");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    // Trusts the written mark if the file still holds everything up to it (the process died, the host did not),
+    // otherwise the synced one; anything past the trusted length was never acknowledged and is cut off to be resent.
+    // What is kept is then fsynced, since a restarted participant acknowledges it
+    private long recover() throws IOException {
+        long size = channel.size();
+        if (markChannel.size() < MARK_LENGTH) { // A log from before the mark file, or a new one
+            writtenLength = syncedLength = size;
+            channel.position(size);
+            return 0;
+        }
+        mark.clear();
+        while (mark.hasRemaining() && markChannel.read(mark, mark.position()) >= 0) {}
+        long written = mark.getLong(0);
+        long writtenAt = mark.getLong(8);
+        long synced = mark.getLong(16);
+        long syncedAt = mark.getLong(24);
+        long sequence;
+        if (size >= writtenAt) {
+            sequence = written;
+            writtenLength = writtenAt;
+        } else {
+            sequence = synced;
+            writtenLength = Math.min(size, syncedAt);
+        }
+        syncedLength = writtenLength;
+        if (size > writtenLength) channel.truncate(writtenLength);
+        channel.position(writtenLength);
+        // Written lines that the dead process never fsynced may still be only in the page cache; they count as synced
+        // from here on, so they are forced, and the mark with them
+        channel.force(false);
+        writtenUpTo = syncedUpTo = sequence;
+        writeMark();
+        markChannel.force(false);
+        return sequence;
+    }
+
+    // Sequence of the last message logged by an earlier run; anything up to it that is resent is already here
+    long persistedUpTo() {
+        return persistedUpTo;
+    }
+
+    // Sequence of the last message that is on disk, and so safe to acknowledge
+    long syncedUpTo() {
+        return syncedUpTo;
+    }
+
+    synchronized void append(long sequence, String message) throws IOException {
+        byte[] line = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        if (line.length > buffer.remaining()) {
+            writeBuffer();
+        }
+        if (line.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(line));
+        } else {
+            buffer.put(line);
+        }
+        bufferedUpTo = sequence;
+        unsyncedMessages++;
+    }
+
+    // Writes out the current group and fsyncs if the policy calls for it
+    synchronized void commit() throws IOException {
+        writeBuffer();
+        if (unsynced == 0) return;
+        boolean due;
+        switch (policy) {
+            case MESSAGE:
+                due = true;
+                break;
+            case BYTES:
+                due = unsynced >= syncBytes;
+                break;
+            default:
+                due = System.currentTimeMillis() - lastSync >= syncIntervalMs;
+                break;
+        }
+        if (due || unsyncedMessages >= MAX_UNSYNCED_MESSAGES) sync();
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+        if (bufferedUpTo != writtenUpTo) {
+            writtenUpTo = bufferedUpTo;
+            writtenLength = channel.position();
+            writeMark();
+        }
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            unsynced += channel.write(data);
+        }
+    }
+
+    // Not forced: a process that dies keeps it along with the lines, and a host crash falls back to the synced half
+    private void writeMark() throws IOException {
+        mark.clear();
+        mark.putLong(writtenUpTo).putLong(writtenLength).putLong(syncedUpTo).putLong(syncedLength).flip();
+        while (mark.hasRemaining()) {
+            markChannel.write(mark, mark.position());
+        }
+    }
+
+    private synchronized void sync() throws IOException {
+        channel.force(false);
+        syncedLength = writtenLength;
+        syncedUpTo = writtenUpTo;
+        writeMark();
+        markChannel.force(false);
+        unsynced = 0;
+        unsyncedMessages = 0;
+        lastSync = System.currentTimeMillis();
+    }
+
+    private synchronized void syncQuietly() {
+        try {
+            writeBuffer();
+            if (unsynced > 0) sync();
+        } catch (IOException e) {
+            System.err.println("Failed to sync receive log: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (syncer != null) syncer.shutdownNow();
+        try {
+            writeBuffer();
+            if (unsynced > 0) sync();
+        } finally {
+            channel.close();
+            markChannel.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+
+// Single-writer, many-reader ring of message frames in a memory-mapped file, normally under /dev/shm so it never
+// touches disk. Coordinator/SharedRing.java and Participant/SharedRing.java must stay identical.
+// The Coordinator writes each multicast once; every co-located participant reads at its own cursor.
+// Header: magic (4) | unused (4) | capacity (8) | reserved (8) | published (8). Positions only grow; a record sits
+// at position % capacity and is: length (4) | recipient count (2) | recipient ids (4 each) | frame, padded to 8 bytes.
+// No recipients means every ring reader. A record that would not fit before the end is preceded by a PADDING length
+// and written at the start instead.
+// The writer raises reserved before overwriting anything and published after; a reader that finds reserved more
+// than a capacity past its cursor has been lapped and must get the rest some other way.
+class SharedRing implements Closeable {
+    private static final int MAGIC = 0x52494e47; // "RING"
+    private static final int HEADER = 64;
+    private static final int CAPACITY = 8;
+    private static final int RESERVED = 16;
+    private static final int PUBLISHED = 24;
+    private static final int PADDING = -1;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final int MAX_RECORD = 4 + 2 + 4 * Short.MAX_VALUE + Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD + 8;
+    static final int MIN_CAPACITY = 2 * MAX_RECORD; // Always room for the largest record, wherever the ring wraps
+
+    interface FrameHandler {
+        void accept(Frame frame) throws IOException;
+    }
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final long capacity;
+    private final boolean writer;
+    private long published; // Writer only
+
+    private SharedRing(Path path, MappedByteBuffer buffer, long capacity, boolean writer) {
+        this.path = path;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.writer = writer;
+    }
+
+    // Replaces any ring left at the path by an earlier run. Every reader sees every record, so the file is created
+    // afresh readable by its owner only (where the file system has POSIX permissions): ring participants must run as
+    // the Coordinator's user.
+    static SharedRing create(Path path, long capacity) throws IOException {
+        capacity = Math.min(Integer.MAX_VALUE - HEADER, Math.max(MIN_CAPACITY, capacity)) & ~7L;
+        Files.deleteIfExists(path); // Not reused: a file someone else created could keep their access to it
+        FileAttribute<?>[] ownerOnly = path.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                : new FileAttribute<?>[0];
+        try (FileChannel channel = FileChannel.open(path, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE), ownerOnly)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity);
+            buffer.putLong(CAPACITY, capacity);
+            LONGS.setVolatile(buffer, RESERVED, 0L);
+            LONGS.setVolatile(buffer, PUBLISHED, 0L);
+            buffer.putInt(0, MAGIC);
+            return new SharedRing(path, buffer, capacity, true);
+        }
+    }
+
+    static SharedRing open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC) throw new IOException("Not a message ring: " + path);
+            return new SharedRing(path, buffer, buffer.getLong(CAPACITY), false);
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    // Writer: position the next record will be published at; readers joining now start here
+    long published() {
+        return published;
+    }
+
+    // Writer: appends one frame for the given recipients (empty for every reader)
+    void write(ByteBuffer frame, int[] recipients) {
+        int length = 4 + 2 + 4 * recipients.length + frame.remaining();
+        length = (length + 7) & ~7;
+        long position = published;
+        int offset = (int) (position % capacity);
+        long start = offset + length > capacity ? position + (capacity - offset) : position;
+        LONGS.setVolatile(buffer, RESERVED, start + length);
+        VarHandle.storeStoreFence(); // Readers must see the reservation before any overwritten byte
+        if (start != position) {
+            buffer.putInt(HEADER + offset, PADDING);
+            offset = 0;
+        }
+        int at = HEADER + offset;
+        buffer.putInt(at, length);
+        buffer.putShort(at + 4, (short) recipients.length);
+        for (int i = 0; i < recipients.length; i++) {
+            buffer.putInt(at + 6 + 4 * i, recipients[i]);
+        }
+        buffer.put(at + 6 + 4 * recipients.length, frame, frame.position(), frame.remaining());
+        published = start + length;
+        LONGS.setRelease(buffer, PUBLISHED, published);
+    }
+
+    final class Reader {
+        private final int participantID;
+        private long cursor;
+        private boolean lapped = false;
+
+        Reader(int participantID, long cursor) {
+            this.participantID = participantID;
+            this.cursor = cursor;
+        }
+
+        // Hands every published frame addressed to this reader to the consumer, up to max frames; returns how many
+        // records were passed over. Once lapped it returns 0 and lapped() is true.
+        int poll(int max, FrameHandler consumer) throws IOException {
+            int records = 0;
+            int delivered = 0;
+            long available = (long) LONGS.getAcquire(buffer, PUBLISHED);
+            while (cursor < available && delivered < max) {
+                int offset = (int) (cursor % capacity);
+                int at = HEADER + offset;
+                int length = buffer.getInt(at);
+                if (length == PADDING) {
+                    if (overwritten()) return 0;
+                    cursor += capacity - offset;
+                    continue;
+                }
+                if (length < 8 || offset + length > capacity) {
+                    if (overwritten()) return 0;
+                    throw new IOException("Corrupt ring record at " + cursor);
+                }
+                int count = buffer.getShort(at + 4);
+                if (count < 0 || 6 + 4 * count > length) {
+                    if (overwritten()) return 0;
+                    throw new IOException("Corrupt ring record at " + cursor);
+                }
+                boolean addressed = count == 0;
+                for (int i = 0; i < count && !addressed; i++) {
+                    addressed = buffer.getInt(at + 6 + 4 * i) == participantID;
+                }
+                Frame frame = null;
+                if (addressed) {
+                    try {
+                        frame = Frame.decode(buffer.slice(at + 6 + 4 * count, length - 6 - 4 * count)); // Copies the payload out
+                    } catch (IOException e) {
+                        if (overwritten()) return 0;
+                        throw e;
+                    }
+                }
+                if (overwritten()) return 0;
+                if (addressed && frame == null) throw new IOException("Truncated ring record at " + cursor);
+                cursor += length;
+                records++;
+                if (frame != null) {
+                    consumer.accept(frame);
+                    delivered++;
+                }
+            }
+            return records;
+        }
+
+        // True once the writer may have reused the bytes at the cursor
+        private boolean overwritten() {
+            VarHandle.loadLoadFence();
+            if ((long) LONGS.getVolatile(buffer, RESERVED) - cursor > capacity) lapped = true;
+            return lapped;
+        }
+
+        boolean lapped() {
+            return lapped;
+        }
+    }
+
+    Reader reader(int participantID, long start) {
+        return new Reader(participantID, start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer) Files.deleteIfExists(path);
+    }
+}
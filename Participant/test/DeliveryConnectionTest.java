@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeliveryConnectionTest {
+    private static final int PARTICIPANT = 5;
+    private static final int MESSAGES = DeliveryConnection.RING_WINDOW + 1000;
+
+    @TempDir
+    Path directory;
+
+    private static void awaitReceived(AtomicLong received, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (received.get() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "received " + received.get() + " of " + count);
+            Thread.sleep(1);
+        }
+    }
+
+    // Nothing holds back the ring writer, so the reader keeps its own ack window
+    @Test
+    @Timeout(60)
+    void ringReaderStopsAtItsWindowUntilAcknowledged() throws Exception {
+        AtomicLong received = new AtomicLong();
+        AtomicLong release = new AtomicLong(); // Acknowledged on the receiver's next drain
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket coordinatorEnd = new Socket(listener.getInetAddress(), listener.getLocalPort());
+             DeliveryConnection connection = new DeliveryConnection(PARTICIPANT, listener.accept());
+             SharedRing ring = SharedRing.create(directory.resolve("ring"), 0)) {
+            Thread receiver = new Thread(() -> {
+                long[] acked = {0};
+                try {
+                    connection.run(new DeliveryConnection.Receiver() {
+                        @Override
+                        public void message(Frame message) {
+                            received.incrementAndGet();
+                        }
+
+                        @Override
+                        public void drained() throws IOException {
+                            if (release.get() > acked[0]) {
+                                acked[0] = release.get();
+                                connection.ack(acked[0]);
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    // Closed at the end of the test
+                }
+            }, "Receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            long start = ring.published();
+            for (long sequence = 1; sequence <= MESSAGES; sequence++) {
+                byte[] message = new byte[64];
+                ring.write(Frame.message(1, sequence, 0, message, 0, message.length), new int[0]);
+            }
+            DataOutputStream out = new DataOutputStream(coordinatorEnd.getOutputStream());
+            Frame.ring(PARTICIPANT, 0, start, ring.path().toString()).writeTo(out);
+            out.flush();
+
+            awaitReceived(received, DeliveryConnection.RING_WINDOW);
+            Thread.sleep(200);
+            assertEquals(DeliveryConnection.RING_WINDOW, received.get()); // Held there while nothing is acknowledged
+
+            release.set(1000); // Frees exactly as many places as it acknowledges
+            awaitReceived(received, DeliveryConnection.RING_WINDOW + 1000);
+            Thread.sleep(200);
+            assertEquals(DeliveryConnection.RING_WINDOW + 1000, received.get());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A log left open stands for a participant that died without closing it; nothing it holds is synced or written again
+class ReceiveLogTest {
+    private static final long HOUR = 3_600_000;
+
+    @TempDir
+    Path directory;
+
+    private String file() {
+        return directory.resolve("received.txt").toString();
+    }
+
+    // Writes on every commit but never fsyncs on its own
+    private ReceiveLog unsynced() throws IOException {
+        return new ReceiveLog(file(), ReceiveLog.SyncPolicy.BYTES, HOUR, Long.MAX_VALUE);
+    }
+
+    private List<String> lines() throws IOException {
+        return Files.readAllLines(Path.of(file()), StandardCharsets.UTF_8);
+    }
+
+    private void appendAll(ReceiveLog log, long from, long to) throws IOException {
+        for (long sequence = from; sequence <= to; sequence++) log.append(sequence, "message " + sequence);
+        log.commit();
+    }
+
+    @Test
+    void writesAGroupOnlyWhenItIsCommitted() throws IOException {
+        try (ReceiveLog log = unsynced()) {
+            log.append(1, "message 1");
+            log.append(2, "message 2");
+            assertEquals(Collections.emptyList(), lines());
+            log.commit();
+            assertEquals(Arrays.asList("message 1", "message 2"), lines());
+            log.append(3, "message 3");
+        }
+        assertEquals(Arrays.asList("message 1", "message 2", "message 3"), lines()); // Close writes out the last group
+    }
+
+    @Test
+    void keepsALineLargerThanTheBufferWholeAndInOrder() throws IOException {
+        String large = "x".repeat(100 * 1024);
+        try (ReceiveLog log = new ReceiveLog(file(), ReceiveLog.SyncPolicy.MESSAGE, HOUR, 0)) {
+            log.append(1, "before");
+            log.append(2, large);
+            log.append(3, "after");
+            log.commit();
+            assertEquals(3, log.syncedUpTo());
+        }
+        assertEquals(Arrays.asList("before", large, "after"), lines());
+    }
+
+    @Test
+    void processDeathKeepsWrittenLinesAndCutsAnUnmarkedTail() throws IOException {
+        try (ReceiveLog log = unsynced()) {
+            appendAll(log, 1, 2);
+        }
+        ReceiveLog dead = unsynced();
+        appendAll(dead, 3, 4);
+        assertEquals(2, dead.syncedUpTo()); // Written, but not yet safe to acknowledge
+        Files.write(Path.of(file()), "message 5".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND); // Unmarked
+
+        try (ReceiveLog log = unsynced()) {
+            assertEquals(4, log.persistedUpTo());
+            assertEquals(4, log.syncedUpTo()); // Forced on open, so safe to acknowledge now
+            assertEquals(Arrays.asList("message 1", "message 2", "message 3", "message 4"), lines());
+        }
+        ByteBuffer mark = ByteBuffer.wrap(Files.readAllBytes(Path.of(file() + ".mark")));
+        assertEquals(4, mark.getLong(16)); // A host crash from here on falls back no further than what was acknowledged
+        assertEquals(Files.size(Path.of(file())), mark.getLong(24));
+    }
+
+    @Test
+    void hostCrashFallsBackToTheSyncedMark() throws IOException {
+        try (ReceiveLog log = unsynced()) {
+            appendAll(log, 1, 2);
+        }
+        long synced = Files.size(Path.of(file()));
+        ReceiveLog crashed = unsynced();
+        appendAll(crashed, 3, 4);
+        try (FileChannel channel = FileChannel.open(Path.of(file()), StandardOpenOption.WRITE)) {
+            channel.truncate(synced + 4); // The page cache held the rest; part of "message 3" made it to disk
+        }
+
+        try (ReceiveLog log = unsynced()) {
+            assertEquals(2, log.persistedUpTo());
+            assertEquals(Arrays.asList("message 1", "message 2"), lines());
+            appendAll(log, 3, 3); // Resent by the Coordinator, since only 2 was acknowledged
+        }
+        try (ReceiveLog log = unsynced()) {
+            assertEquals(3, log.persistedUpTo());
+            assertEquals(Arrays.asList("message 1", "message 2", "message 3"), lines());
+        }
+    }
+
+    @Test
+    void logWithoutAMarkFileIsKeptWhole() throws IOException {
+        Files.write(Path.of(file()), "older line\n".getBytes(StandardCharsets.UTF_8));
+        try (ReceiveLog log = unsynced()) {
+            assertEquals(0, log.persistedUpTo());
+            appendAll(log, 1, 1);
+        }
+        assertEquals(Arrays.asList("older line", "message 1"), lines());
+    }
+}